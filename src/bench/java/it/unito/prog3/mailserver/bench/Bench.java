@@ -0,0 +1,174 @@
+package it.unito.prog3.mailserver.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Harness minimo per micro-benchmark, sul modello di JMH ma senza dipendenze.
+ * <p>Ogni benchmark gira su {@code threads} thread per alcune iterazioni di riscaldamento
+ * (scartate) e di misura, di durata fissa; il risultato è il throughput medio in
+ * operazioni al secondo con la deviazione standard tra le iterazioni, più il tempo
+ * medio per operazione. Facoltativamente altri thread eseguono in sottofondo un
+ * carico non misurato (ad esempio scrittori mentre si misurano i lettori).</p>
+ * <p>I valori restituiti dalle operazioni finiscono in {@link #sink} perché il JIT
+ * non possa eliminarne il calcolo.</p>
+ * <p>Opzioni di sistema: {@code -Dbench.warmup=3}, {@code -Dbench.iterations=5},
+ * {@code -Dbench.seconds=1} (durata di ogni iterazione).</p>
+ */
+public final class Bench {
+
+    /** Una singola operazione misurata; {@code thread} è l'indice del thread (0..n-1). */
+    @FunctionalInterface
+    public interface Op {
+        Object run(int thread) throws Exception;
+    }
+
+    /**
+     * Risultato di un benchmark.
+     *
+     * @param name    nome del benchmark
+     * @param params  parametri (ad esempio {@code size=1000})
+     * @param threads thread misurati
+     * @param ops     operazioni al secondo (media delle iterazioni)
+     * @param error   deviazione standard delle iterazioni
+     */
+    public record Result(String name, String params, int threads, double ops, double error) {
+
+        /** @return tempo medio per operazione di un thread, in nanosecondi */
+        public double nanosPerOp() {
+            return ops == 0 ? 0 : threads * 1e9 / ops;
+        }
+    }
+
+    static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    static final double SECONDS = Double.parseDouble(System.getProperty("bench.seconds", "1"));
+
+    private static volatile int sink;
+    private static boolean header;
+
+    private Bench() {}
+
+    /** Misura {@code op} su {@code threads} thread, senza carico di sottofondo. */
+    public static Result run(String name, String params, int threads, Op op) throws InterruptedException {
+        return run(name, params, threads, op, 0, null);
+    }
+
+    /**
+     * Misura {@code op} su {@code threads} thread mentre {@code background} thread
+     * eseguono {@code load} senza essere misurati.
+     */
+    public static Result run(String name, String params, int threads, Op op, int background, Op load)
+            throws InterruptedException {
+        List<Thread> noise = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        for (int b = 0; b < background; b++) {
+            int idx = b;
+            Thread t = new Thread(() -> {
+                try {
+                    while (!stop.get()) consume(load.run(idx));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "bench-background-" + b);
+            t.setDaemon(true);
+            t.start();
+            noise.add(t);
+        }
+        try {
+            for (int i = 0; i < WARMUP; i++) iteration(threads, op);
+            double[] samples = new double[ITERATIONS];
+            for (int i = 0; i < ITERATIONS; i++) samples[i] = iteration(threads, op);
+            double mean = 0;
+            for (double s : samples) mean += s;
+            mean /= samples.length;
+            double var = 0;
+            for (double s : samples) var += (s - mean) * (s - mean);
+            double err = samples.length > 1 ? Math.sqrt(var / (samples.length - 1)) : 0;
+            Result r = new Result(name, params, threads, mean, err);
+            print(r);
+            return r;
+        } finally {
+            stop.set(true);
+            for (Thread t : noise) t.join();
+        }
+    }
+
+    /** @return operazioni al secondo in una iterazione */
+    private static double iteration(int threads, Op op) throws InterruptedException {
+        LongAdder done = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] ts = new Thread[threads];
+        Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            int idx = t;
+            ts[t] = new Thread(() -> {
+                long n = 0;
+                try {
+                    ready.countDown();
+                    go.await();
+                    while (!stop.get()) {
+                        consume(op.run(idx));
+                        n++;
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                } finally {
+                    done.add(n);
+                }
+            }, "bench-" + t);
+            ts[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep((long) (SECONDS * 1000));
+        stop.set(true);
+        for (Thread t : ts) t.join();
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) throw new IllegalStateException("Benchmark fallito", failure[0]);
+        return done.sum() * 1e9 / elapsed;
+    }
+
+    private static void consume(Object o) {
+        if (o != null) sink ^= o.hashCode();
+    }
+
+    private static synchronized void print(Result r) {
+        if (!header) {
+            System.out.printf(Locale.ROOT, "%-36s %-22s %7s %14s %12s %12s%n",
+                    "Benchmark", "Params", "Threads", "ops/s", "± err", "ns/op");
+            header = true;
+        }
+        System.out.printf(Locale.ROOT, "%-36s %-22s %7d %14.1f %12.1f %12.1f%n",
+                r.name(), r.params(), r.threads(), r.ops(), r.error(), r.nanosPerOp());
+    }
+
+    /** @return valore dell'opzione {@code name} nella riga di comando, {@code def} se assente */
+    public static String arg(String[] args, String name, String def) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return def;
+    }
+
+    /** @return true se l'opzione senza valore {@code name} è nella riga di comando */
+    public static boolean flag(String[] args, String name) {
+        for (String a : args) if (a.equals(name)) return true;
+        return false;
+    }
+
+    /** @return interi separati da virgola, ad esempio {@code 1,4,16} */
+    public static int[] ints(String csv) {
+        String[] p = csv.split(",");
+        int[] v = new int[p.length];
+        for (int i = 0; i < p.length; i++) v[i] = Integer.parseInt(p[i].trim());
+        return v;
+    }
+}
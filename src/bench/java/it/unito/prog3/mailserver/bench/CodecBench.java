@@ -0,0 +1,41 @@
+package it.unito.prog3.mailserver.bench;
+
+import shared.Email;
+import shared.Wire;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Benchmark delle codifiche testuali condivise con il client: {@link Email#toString()},
+ * {@link Email#fromString(String)}, {@link Wire#b64(String)} e {@link Wire#unb64(String)},
+ * con corpi di dimensione crescente.
+ * <pre>
+ *   java -cp out:bench it.unito.prog3.mailserver.bench.CodecBench [-bodies 16,1024,65536] [-threads 1,4]
+ * </pre>
+ */
+public final class CodecBench {
+
+    private CodecBench() {}
+
+    public static void main(String[] args) throws Exception {
+        int[] bodies = Bench.ints(Bench.arg(args, "-bodies", "16,1024,65536"));
+        int[] threads = Bench.ints(Bench.arg(args, "-threads", "1,4"));
+
+        for (int size : bodies) {
+            String body = "è".repeat(size / 4) + "a".repeat(size - size / 4 * 2);
+            Email email = new Email(42, "davide@mail.com", List.of("riccardo@mail.com", "orlando@mail.it"),
+                    "Oggetto di prova", body, LocalDateTime.now());
+            String line = String.join(";", "42", "davide@mail.com", "riccardo@mail.com,orlando@mail.it",
+                    Wire.b64("Oggetto di prova"), Wire.b64(body), email.getDate().toString());
+            String b64 = Wire.b64(body);
+            String p = "body=" + size;
+            for (int t : threads) {
+                Bench.run("Email.toString", p, t, i -> email.toString());
+                Bench.run("Email.fromString", p, t, i -> Email.fromString(line));
+                Bench.run("Wire.b64", p, t, i -> Wire.b64(body));
+                Bench.run("Wire.unb64", p, t, i -> Wire.unb64(b64));
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package it.unito.prog3.mailserver.bench;
+
+import it.unito.prog3.mailserver.net.ServerCore;
+import it.unito.prog3.mailserver.stats.Histogram;
+import it.unito.prog3.mailserver.store.MailStore;
+import shared.Protocol;
+import shared.Wire;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generatore di carico end-to-end: migliaia di sessioni {@link Wire} contro un server
+ * locale, ognuna su un virtual thread con la propria connessione.
+ * <p>Ogni sessione sceglie a caso il prossimo comando secondo il mix ({@code LOGIN},
+ * {@code SEND} con {@code -fanout} destinatari, {@code GET} di polling sui messaggi nuovi,
+ * {@code DELETE} di un messaggio visto in un GET precedente) e ne attende la risposta.</p>
+ * <ul>
+ *   <li><b>closed loop</b> ({@code -rate 0}): la richiesta successiva parte appena arriva
+ *       la risposta, più l'eventuale {@code -think}; il throughput misura la capacità.</li>
+ *   <li><b>open loop</b> ({@code -rate R}): le richieste sono pianificate a {@code R}/s in
+ *       totale, indipendentemente dalle risposte; la latenza è misurata dall'istante
+ *       pianificato, quindi comprende l'attesa di chi è rimasto indietro (niente
+ *       coordinated omission).</li>
+ * </ul>
+ * <p>Al termine stampa throughput, p50/p99/p999 per comando ed errori per codice; durante
+ * la prova una riga al secondo. Con {@code -embedded} avvia anche il server nello stesso
+ * processo (modalità e durabilità dalle solite proprietà {@code mailserver.*}), creando
+ * {@code accounts.txt} se manca: così si confrontano le modalità con un solo comando.</p>
+ * <pre>
+ *   java -cp out:bench it.unito.prog3.mailserver.bench.LoadGen [-host localhost] [-port 5555]
+ *        [-embedded] [-accounts accounts.txt] [-users 100] [-sessions 1000]
+ *        [-mix login=5,send=20,get=65,delete=10] [-fanout 3] [-body 512] [-page 100]
+ *        [-rate 0] [-think 0] [-warmup 5] [-seconds 30]
+ * </pre>
+ * <p>Con migliaia di sessioni servono altrettanti descrittori ({@code ulimit -n}) sia qui
+ * sia nel server.</p>
+ */
+public final class LoadGen {
+
+    private static final String[] COMMANDS = {
+            Protocol.CMD_LOGIN, Protocol.CMD_SEND, Protocol.CMD_GET, Protocol.CMD_DELETE
+    };
+    /** Messaggi visti da ogni sessione e candidati a DELETE. */
+    private static final int SEEN_MAX = 256;
+
+    /** Contatori di una finestra di misura; sostituiti alla fine del riscaldamento. */
+    private static final class Window {
+        final Map<String, Histogram> latency = new LinkedHashMap<>();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+        final LongAdder done = new LongAdder();
+        final long startNanos = System.nanoTime();
+
+        Window() {
+            for (String c : COMMANDS) latency.put(c, new Histogram());
+        }
+
+        void error(String code) {
+            errors.computeIfAbsent(code, k -> new LongAdder()).increment();
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final List<String> users;
+    private final int[] mix = new int[COMMANDS.length];
+    private final int mixTotal;
+    private final int fanout;
+    private final String subject;
+    private final String body;
+    private final int page;
+    private final long intervalNanos;
+    private final long thinkNanos;
+    private final int sessions;
+    private final LongAdder live = new LongAdder();
+    private volatile Window window = new Window();
+    private volatile boolean stop;
+
+    private LoadGen(String[] args, List<String> users, int sessions) {
+        this.host = Bench.arg(args, "-host", "localhost");
+        this.port = Integer.parseInt(Bench.arg(args, "-port", "5555"));
+        this.users = users;
+        this.sessions = sessions;
+        int total = 0;
+        for (String part : Bench.arg(args, "-mix", "login=5,send=20,get=65,delete=10").split(",")) {
+            String[] kv = part.split("=");
+            int k = List.of(COMMANDS).indexOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            if (k < 0) throw new IllegalArgumentException("Comando sconosciuto nel mix: " + kv[0]);
+            mix[k] = Integer.parseInt(kv[1].trim());
+            total += mix[k];
+        }
+        if (total <= 0) throw new IllegalArgumentException("Mix vuoto");
+        this.mixTotal = total;
+        this.fanout = Math.max(1, Integer.parseInt(Bench.arg(args, "-fanout", "3")));
+        this.subject = Wire.b64("Carico di prova");
+        this.body = Wire.b64("x".repeat(Integer.parseInt(Bench.arg(args, "-body", "512"))));
+        this.page = Integer.parseInt(Bench.arg(args, "-page", "100"));
+        double rate = Double.parseDouble(Bench.arg(args, "-rate", "0"));
+        this.intervalNanos = rate > 0 ? (long) (sessions * 1e9 / rate) : 0;
+        this.thinkNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(Bench.arg(args, "-think", "0")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = Integer.parseInt(Bench.arg(args, "-sessions", "1000"));
+        int warmup = Integer.parseInt(Bench.arg(args, "-warmup", "5"));
+        int seconds = Integer.parseInt(Bench.arg(args, "-seconds", "30"));
+        Path accounts = Path.of(Bench.arg(args, "-accounts", "accounts.txt"));
+
+        ServerCore server = null;
+        if (Bench.flag(args, "-embedded")) {
+            if (!Files.exists(accounts)) {
+                int n = Integer.parseInt(Bench.arg(args, "-users", "100"));
+                List<String> generated = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) generated.add("user" + i + "@load.test");
+                Files.write(accounts, generated);
+            }
+            server = new ServerCore(Integer.parseInt(Bench.arg(args, "-port", "5555")),
+                    MailStore.getInstance(s -> {}), s -> {});
+            server.start();
+            Thread.sleep(200);
+        }
+        List<String> users = new ArrayList<>();
+        for (String line : Files.readAllLines(accounts)) {
+            if (!line.isBlank()) users.add(line.trim().toLowerCase(Locale.ROOT));
+        }
+        if (users.isEmpty()) throw new IllegalArgumentException("Nessun utente in " + accounts);
+
+        LoadGen g = new LoadGen(args, users, sessions);
+        System.out.printf("%d sessioni, %d utenti, %s, %ds di riscaldamento + %ds%n", sessions, users.size(),
+                g.intervalNanos > 0 ? "open loop a " + Bench.arg(args, "-rate", "") + " req/s" : "closed loop",
+                warmup, seconds);
+        List<Thread> threads = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            int idx = i;
+            threads.add(Thread.ofVirtual().name("load-", i).start(() -> g.session(idx)));
+        }
+
+        for (int s = 1; s <= warmup + seconds; s++) {
+            Window cur = g.window;
+            long before = cur.done.sum();
+            Thread.sleep(1000);
+            long rate = cur.done.sum() - before;
+            if (s == warmup) g.window = new Window();
+            System.out.printf("%4ds  sessioni %5d  %9d req/s%s%n", s, g.live.sum(), rate,
+                    s <= warmup ? "  (riscaldamento)" : "");
+        }
+        Window w = g.window;
+        long elapsed = System.nanoTime() - w.startNanos;
+        g.stop = true;
+        for (Thread t : threads) t.join(5000);
+        report(w, elapsed);
+        if (server != null) server.stop();
+        System.exit(0);
+    }
+
+    /** Ciclo di una sessione: connessione (ritentata se cade), poi richieste fino allo stop. */
+    private void session(int idx) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        String user = users.get(idx % users.size());
+        // le sessioni dello stesso utente si dividono i messaggi da cancellare per id
+        int share = (sessions + users.size() - 1) / users.size(), slot = idx / users.size();
+        ArrayDeque<Integer> seen = new ArrayDeque<>();
+        int lastId = 0;
+        long next = -1;
+        while (!stop) {
+            try (Wire wire = new Wire(host, port)) {
+                live.increment();
+                // fase casuale, così le sessioni open loop non partono tutte insieme
+                if (next < 0) next = System.nanoTime() + (intervalNanos > 0 ? rnd.nextLong(intervalNanos) : 0);
+                try {
+                    while (!stop) {
+                        if (intervalNanos > 0) {
+                            long wait = next - System.nanoTime();
+                            if (wait > 0) LockSupport.parkNanos(wait);
+                        }
+                        long start = intervalNanos > 0 ? next : System.nanoTime();
+                        next += intervalNanos;
+                        lastId = request(wire, pick(rnd, seen), user, lastId, seen, share, slot, rnd, start);
+                        if (thinkNanos > 0) LockSupport.parkNanos(thinkNanos);
+                    }
+                } finally {
+                    live.decrement();
+                }
+            } catch (IOException e) {
+                if (stop) return;
+                window.error("IO");
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    private String pick(ThreadLocalRandom rnd, ArrayDeque<Integer> seen) {
+        int r = rnd.nextInt(mixTotal);
+        for (int k = 0; k < COMMANDS.length; k++) {
+            r -= mix[k];
+            if (r < 0) {
+                // DELETE senza messaggi noti: si fa prima un GET per scoprirne
+                return Protocol.CMD_DELETE.equals(COMMANDS[k]) && seen.isEmpty() ? Protocol.CMD_GET : COMMANDS[k];
+            }
+        }
+        return Protocol.CMD_GET;
+    }
+
+    /** Esegue un comando e registra latenza ed esito; @return nuovo lastId di polling */
+    private int request(Wire wire, String cmd, String user, int lastId, ArrayDeque<Integer> seen,
+                        int share, int slot, ThreadLocalRandom rnd, long start) throws IOException {
+        String first;
+        switch (cmd) {
+            case Protocol.CMD_LOGIN -> {
+                wire.send(Protocol.CMD_LOGIN + ";" + user);
+                first = wire.receive();
+            }
+            case Protocol.CMD_SEND -> {
+                StringBuilder to = new StringBuilder();
+                for (int i = 0; i < fanout; i++) {
+                    if (i > 0) to.append(',');
+                    to.append(users.get(rnd.nextInt(users.size())));
+                }
+                wire.send(String.join(";", Protocol.CMD_SEND, user, to, subject, body));
+                first = wire.receive();
+            }
+            case Protocol.CMD_DELETE -> {
+                wire.send(Protocol.CMD_DELETE + ";" + user + ";" + seen.pollFirst());
+                first = wire.receive();
+            }
+            default -> {
+                wire.send(String.join(";", Protocol.CMD_GET, user, String.valueOf(lastId), String.valueOf(page)));
+                Wire.Page p = wire.receivePage(lastId);
+                first = p.lines().isEmpty() ? Protocol.RESP_END : p.lines().get(0);
+                if (!first.startsWith(Protocol.RESP_ERROR)) {
+                    for (String line : p.lines()) {
+                        int a = line.indexOf(';') + 1, b = line.indexOf(';', a);
+                        int id = Integer.parseInt(line.substring(a, b));
+                        if (id % share != slot) continue;
+                        seen.addLast(id);
+                        if (seen.size() > SEEN_MAX) seen.pollFirst();
+                    }
+                    lastId = p.cursor();
+                }
+            }
+        }
+        if (first == null) throw new IOException("Connessione chiusa dal server");
+        Window w = window;
+        w.latency.get(cmd).recordSince(start);
+        w.done.increment();
+        if (first.startsWith(Protocol.RESP_ERROR)) {
+            String[] parts = first.split(";", 3);
+            w.error(cmd + ":" + (parts.length > 1 ? parts[1] : "?"));
+        }
+        return lastId;
+    }
+
+    private static void report(Window w, long elapsedNanos) {
+        double secs = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%n%-8s %10s %11s %9s %9s %9s %9s %9s%n",
+                "Comando", "richieste", "req/s", "mean µs", "p50 µs", "p99 µs", "p999 µs", "max µs");
+        long total = 0;
+        for (Map.Entry<String, Histogram> e : w.latency.entrySet()) {
+            Histogram.Snapshot s = e.getValue().snapshot();
+            total += s.count();
+            System.out.printf(Locale.ROOT, "%-8s %10d %11.1f %9d %9d %9d %9d %9d%n", e.getKey(), s.count(),
+                    s.count() / secs, s.mean(), s.p50(), s.p99(), s.p999(), s.max());
+        }
+        System.out.printf(Locale.ROOT, "%-8s %10d %11.1f%n", "Totale", total, total / secs);
+        Map<String, LongAdder> errors = new TreeMap<>(w.errors);
+        if (errors.isEmpty()) {
+            System.out.println("Nessun errore");
+        } else {
+            System.out.println("Errori:");
+            errors.forEach((k, v) -> System.out.printf("  %-28s %d%n", k, v.sum()));
+        }
+    }
+}
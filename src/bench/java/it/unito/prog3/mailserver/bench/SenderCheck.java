@@ -0,0 +1,118 @@
+package it.unito.prog3.mailserver.bench;
+
+import it.unito.prog3.mailserver.net.ServerCore;
+import it.unito.prog3.mailserver.store.MailStore;
+import shared.Email;
+import shared.Frame;
+import shared.Protocol;
+import shared.Wire;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verifica end-to-end della validazione del mittente: SEND e SENDBATCH (testuali e binari)
+ * con un mittente inesistente o con separatori ({@code ;}, tab, a capo) devono ricevere
+ * {@code ERROR;BadRequest}, e il journal scritto accanto ai messaggi validi deve essere
+ * riapplicato per intero al riavvio.
+ * <p>Il server gira in un processo figlio in una cartella temporanea (lo {@link MailStore}
+ * è un singleton e legge dalla cartella corrente); un secondo processo riapre l'archivio e
+ * conta i messaggi. Termina con codice diverso da 0 se una verifica fallisce.</p>
+ * <pre>
+ *   java -cp out:bench it.unito.prog3.mailserver.bench.SenderCheck
+ * </pre>
+ */
+public final class SenderCheck {
+
+    private static final String FROM = "davide@mail.com";
+    private static final String TO = "riccardo@mail.com";
+    /** Messaggi validi inviati dalla prima fase: un SEND e un SENDBATCH da due. */
+    private static final int DELIVERED = 3;
+    private static final int PORT = 5597;
+
+    private SenderCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        String phase = args.length > 0 ? args[0] : "";
+        switch (phase) {
+            case "serve" -> System.exit(serve());
+            case "replay" -> System.exit(replay());
+            default -> {
+                Path dir = Files.createTempDirectory("sendercheck");
+                Files.write(dir.resolve("accounts.txt"), List.of(FROM, TO));
+                int rc = child(dir, "serve");
+                if (rc == 0) rc = child(dir, "replay");
+                System.out.println(rc == 0 ? "OK" : "FALLITO");
+                System.exit(rc);
+            }
+        }
+    }
+
+    private static int child(Path dir, String phase) throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SenderCheck.class.getName(), phase)
+                .directory(dir.toFile()).inheritIO().start().waitFor();
+    }
+
+    /** Prima fase: richieste valide e non valide contro un server locale. */
+    private static int serve() throws Exception {
+        MailStore store = MailStore.getInstance(s -> {});
+        ServerCore core = new ServerCore(PORT, store, s -> {});
+        core.start();
+        int failed = 0;
+        try {
+            List<String> bad = List.of("nessuno@mail.com", FROM + ";x", FROM + "\t", FROM + "\n" + TO);
+            try (Wire w = new Wire("localhost", PORT)) {
+                w.send(String.join(";", Protocol.CMD_SEND, FROM, TO, Wire.b64("ok"), Wire.b64("ok")));
+                failed += expect("SEND testuale valido", w.receive(), Protocol.RESP_OK);
+                w.send(String.join(";", Protocol.CMD_SEND_BATCH, "1", FROM + "\t", TO, Wire.b64("x"), Wire.b64("x")));
+                failed += expect("SENDBATCH testuale con tab", w.receive(), Protocol.RESP_ERROR + ";BadRequest");
+            }
+            try (Wire w = new Wire("localhost", PORT)) {
+                if (!w.upgrade()) throw new IOException("HELLO rifiutato");
+                for (String from : bad) {
+                    w.request(Protocol.OP_SEND, from, TO, "x", "x");
+                    failed += expect("SEND binario da " + from.replace("\n", "\\n").replace("\t", "\\t"),
+                            line(w.receiveFrame()), Protocol.RESP_ERROR + ";BadRequest");
+                    w.request(Protocol.OP_SEND_BATCH, "2", FROM, TO, "x", "x", from, TO, "x", "x");
+                    failed += expect("SENDBATCH binario da " + from.replace("\n", "\\n").replace("\t", "\\t"),
+                            line(w.receiveFrame()), Protocol.RESP_ERROR + ";BadRequest");
+                }
+                w.request(Protocol.OP_SEND_BATCH, "2", FROM, TO, "a", "a", FROM, TO, "b", "b");
+                failed += expect("SENDBATCH binario valido", line(w.receiveFrame()), Protocol.RESP_OK + ";2");
+            }
+        } finally {
+            core.stop();
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    /** Seconda fase: l'archivio riaperto contiene tutti e soli i messaggi confermati. */
+    private static int replay() {
+        List<String> problems = new ArrayList<>();
+        MailStore store = MailStore.getInstance(s -> { if (s.contains("ignorat")) problems.add(s); });
+        List<Email> inbox = store.getEmailsAfter(TO, 0);
+        boolean ok = inbox.size() == DELIVERED && inbox.stream().allMatch(e -> e.getFrom().equals(FROM))
+                && problems.isEmpty();
+        System.out.println((ok ? "ok   " : "KO   ") + "riavvio: " + inbox.size() + " messaggi su " + DELIVERED
+                + (problems.isEmpty() ? "" : " " + problems));
+        return ok ? 0 : 1;
+    }
+
+    private static String line(Frame f) {
+        if (f == null) return null;
+        String name = f.op() == Protocol.OP_OK ? Protocol.RESP_OK
+                : f.op() == Protocol.OP_ERROR ? Protocol.RESP_ERROR : "0x" + Integer.toHexString(f.op());
+        return f.size() == 0 ? name : name + ";" + String.join(";", f.strings());
+    }
+
+    private static int expect(String what, String got, String want) {
+        boolean ok = want.equals(got);
+        System.out.println((ok ? "ok   " : "KO   ") + what + " -> " + got);
+        return ok ? 0 : 1;
+    }
+}
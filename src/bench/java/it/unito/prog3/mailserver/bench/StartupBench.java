@@ -0,0 +1,144 @@
+package it.unito.prog3.mailserver.bench;
+
+import it.unito.prog3.mailserver.store.MailStore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Tempo di avvio di {@link MailStore} con un archivio grande.
+ * <p>Genera un archivio nel vecchio formato testuale ({@code mails.txt}, senza shard) e lo
+ * apre in una JVM separata: il primo avvio misura la lettura del testo e la conversione negli
+ * snapshot binari, i successivi la lettura dei soli snapshot binari. Ogni avvio è un processo
+ * nuovo (il MailStore è un singleton); le opzioni della JVM corrente ({@code -Xmx}, {@code -D})
+ * passano ai figli. I corpi non sono generati: all'avvio si leggono solo i riferimenti.</p>
+ * <p>Va lanciato da una cartella vuota, dove crea {@code accounts.txt} e l'archivio.</p>
+ * <pre>
+ *   java -cp out:bench it.unito.prog3.mailserver.bench.StartupBench \
+ *        [-messages 1000000] [-users 10000] [-rcpts 2] [-runs 3]
+ * </pre>
+ */
+public final class StartupBench {
+
+    private static final Pattern LOADED = Pattern.compile("Archivio caricato: (\\d+) messaggi in (\\d+) ms");
+    private static final Pattern CONVERTED = Pattern.compile("Dati convertiti .* in (\\d+) ms");
+    private static final Pattern STARTUP = Pattern.compile("startup_ms=(\\d+)");
+
+    private StartupBench() {}
+
+    public static void main(String[] args) throws Exception {
+        if (Bench.flag(args, "-child")) {
+            child();
+            return;
+        }
+        int messages = Integer.parseInt(Bench.arg(args, "-messages", "1000000"));
+        int users = Integer.parseInt(Bench.arg(args, "-users", "10000"));
+        int rcpts = Integer.parseInt(Bench.arg(args, "-rcpts", "2"));
+        int runs = Integer.parseInt(Bench.arg(args, "-runs", "3"));
+
+        try (Stream<Path> files = Files.list(Paths.get("."))) {
+            if (files.findAny().isPresent()) {
+                System.err.println("La cartella corrente non è vuota: lanciare da una cartella vuota.");
+                System.exit(1);
+            }
+        }
+        long start = System.nanoTime();
+        generate(messages, users, rcpts);
+        System.out.printf("archivio generato: %d messaggi, %d utenti, %.1f MB di testo in %d ms%n",
+                messages, users, Files.size(Paths.get("mails.txt")) / 1e6, (System.nanoTime() - start) / 1_000_000);
+
+        System.out.printf("%-8s %10s %12s %12s %12s%n", "formato", "messaggi", "lettura_ms", "convers_ms", "avvio_ms");
+        run("testo");
+        long bytes;
+        try (Stream<Path> files = Files.walk(Paths.get("."))) {
+            bytes = files.filter(p -> p.toString().endsWith(".bin")).mapToLong(p -> p.toFile().length()).sum();
+        }
+        for (int i = 0; i < runs; i++) run("binario");
+        System.out.printf("snapshot binari: %.1f MB%n", bytes / 1e6);
+    }
+
+    /** Apre l'archivio e stampa i tempi rilevati. */
+    private static void child() {
+        long start = System.nanoTime();
+        MailStore.getInstance(line -> {
+            if (LOADED.matcher(line).find() || CONVERTED.matcher(line).find()) System.out.println(line);
+        });
+        System.out.println("startup_ms=" + (System.nanoTime() - start) / 1_000_000);
+        System.exit(0);
+    }
+
+    private static void run(String format) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(ProcessHandle.current().info().command().orElse("java"));
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        if (System.getProperty("mailserver.durability") == null) cmd.add("-Dmailserver.durability=OS");
+        cmd.addAll(List.of("-cp", System.getProperty("java.class.path"), StartupBench.class.getName(), "-child"));
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        String loaded = "?", load = "?", converted = "-", startup = "?";
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                Matcher m;
+                if ((m = LOADED.matcher(line)).find()) {
+                    loaded = m.group(1);
+                    load = m.group(2);
+                } else if ((m = CONVERTED.matcher(line)).find()) {
+                    converted = m.group(1);
+                } else if ((m = STARTUP.matcher(line)).find()) {
+                    startup = m.group(1);
+                } else {
+                    System.err.println(line);
+                }
+            }
+        }
+        if (p.waitFor() != 0) throw new IOException("avvio fallito (exit " + p.exitValue() + ")");
+        System.out.printf("%-8s %10s %12s %12s %12s%n", format, loaded, load, converted, startup);
+    }
+
+    /** Scrive accounts.txt e un mails.txt con corpi già spostati in bodies/ (solo riferimenti). */
+    private static void generate(int messages, int users, int rcpts) throws IOException {
+        List<String> accounts = new ArrayList<>(users);
+        for (int u = 0; u < users; u++) accounts.add("user" + u + "@startup.bench");
+        Files.write(Paths.get("accounts.txt"), accounts);
+
+        Random rnd = new Random(42);
+        DateTimeFormatter fmt = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+        Base64.Encoder b64 = Base64.getEncoder();
+        LocalDateTime date = LocalDateTime.of(2025, 1, 1, 0, 0);
+        long offset = 0;
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get("mails.txt"), StandardCharsets.UTF_8)) {
+            for (int id = 1; id <= messages; id++) {
+                String from = accounts.get(rnd.nextInt(users));
+                StringBuilder to = new StringBuilder();
+                for (int r = 0; r < rcpts; r++) {
+                    if (r > 0) to.append(',');
+                    to.append(accounts.get(rnd.nextInt(users)));
+                }
+                int len = 200 + rnd.nextInt(2000);
+                String subject = b64.encodeToString(("Oggetto del messaggio " + id).getBytes(StandardCharsets.UTF_8));
+                date = date.plusNanos(rnd.nextInt(1_000_000_000));
+                // holdersCsv uguale ai destinatari: nessuna cancellazione
+                bw.write(id + ";" + from + ";" + to + ";" + subject + ";@0:" + offset + ":" + len + ";"
+                        + date.format(fmt) + ";" + to);
+                bw.newLine();
+                offset += len;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package it.unito.prog3.mailserver.bench;
+
+import it.unito.prog3.mailserver.store.MailStore;
+import shared.Email;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark di {@link MailStore} al crescere della inbox.
+ * <p>La inbox di {@code bench@bench} viene riempita fino a ciascuna dimensione richiesta
+ * (in ordine crescente) e per ogni dimensione si misurano:</p>
+ * <ul>
+ *   <li>{@code getEmailsAfter} degli ultimi 10 messaggi e {@code emailsAfter} di una pagina
+ *       di 500 dal centro, con 0 o più scrittori in sottofondo su un'altra inbox;</li>
+ *   <li>{@code addEmail} con più thread scrittori;</li>
+ *   <li>{@code deleteEmail} del messaggio più vecchio, seguito da un {@code addEmail} per
+ *       tenere costante la dimensione (il costo del solo add è nella riga precedente);</li>
+ *   <li>{@code search} di un termine raro (un messaggio su {@value #SUBJECTS}) e dello stesso
+ *       in AND con uno presente ovunque, leggendo al massimo 500 risultati. L'indice si
+ *       costruisce alla prima ricerca e da lì è aggiornato dalle consegne, quindi da quel
+ *       punto anche {@code addEmail} ne include il costo.</li>
+ * </ul>
+ * <p>L'archivio lavora nella cartella corrente: va lanciato da una cartella vuota, dove
+ * crea {@code accounts.txt}. Se la durabilità non è indicata si usa {@code OS}, così si
+ * misura l'archivio e non il disco; allo stesso modo le inbox restano tutte in memoria
+ * ({@code mailserver.residentMb=0}) se non si indica un budget.</p>
+ * <pre>
+ *   java -cp out:bench it.unito.prog3.mailserver.bench.StoreBench \
+ *        [-sizes 10,1000,100000,1000000] [-threads 1,4] [-writers 0,1]
+ * </pre>
+ */
+public final class StoreBench {
+
+    private static final String USER = "bench@bench";
+    private static final String OTHER = "other@bench";
+    private static final String FROM = "sender@bench";
+    private static final int FILL_BATCH = 1000;
+    /** Oggetti distinti: "oggetto N" con N = id modulo questo valore. */
+    private static final int SUBJECTS = 1000;
+    private static final String BODY = "x".repeat(Integer.getInteger("bench.bodyBytes", 200));
+
+    private final MailStore store;
+    /** Id del messaggio più vecchio ancora nella inbox (per il benchmark di cancellazione). */
+    private final AtomicInteger oldest = new AtomicInteger(1);
+
+    private StoreBench(MailStore store) {
+        this.store = store;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = Bench.ints(Bench.arg(args, "-sizes", "10,1000,100000,1000000"));
+        int[] threads = Bench.ints(Bench.arg(args, "-threads", "1,4"));
+        int[] writers = Bench.ints(Bench.arg(args, "-writers", "0,1"));
+
+        boolean shards;
+        try (var dir = Files.list(Paths.get("."))) {
+            shards = dir.anyMatch(f -> f.getFileName().toString().startsWith("shards-"));
+        }
+        if (shards || Files.exists(Paths.get("mails.txt")) || Files.exists(Paths.get("mails.log"))) {
+            System.err.println("La cartella corrente contiene già un archivio: lanciare da una cartella vuota.");
+            System.exit(1);
+        }
+        Files.write(Path.of("accounts.txt"), List.of(USER, OTHER, FROM));
+        if (System.getProperty("mailserver.durability") == null) System.setProperty("mailserver.durability", "OS");
+        if (System.getProperty("mailserver.residentMb") == null) System.setProperty("mailserver.residentMb", "0");
+
+        StoreBench b = new StoreBench(MailStore.getInstance(s -> {}));
+        int filled = 0;
+        for (int size : sizes) {
+            filled = b.fill(filled, size);
+            b.measure(size, threads, writers);
+            filled = b.store.getEmailsAfter(USER, 0).size();
+        }
+        System.exit(0);
+    }
+
+    /** Porta la inbox da {@code have} a {@code size} messaggi. */
+    private int fill(int have, int size) {
+        while (have < size) {
+            int n = Math.min(FILL_BATCH, size - have);
+            List<Email> batch = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) batch.add(email(USER));
+            store.addEmails(batch);
+            have += n;
+        }
+        return have;
+    }
+
+    private void measure(int size, int[] threads, int[] writers) throws InterruptedException {
+        List<Email> all = store.getEmailsAfter(USER, 0);
+        int tailFrom = all.get(Math.max(0, all.size() - 11)).getId();
+        int middle = all.get(all.size() / 2).getId();
+        oldest.set(all.get(0).getId());
+        String p = "size=" + size;
+
+        for (int w : writers) {
+            for (int t : threads) {
+                String params = p + " writers=" + w;
+                Bench.run("MailStore.getEmailsAfter(tail 10)", params, t,
+                        i -> store.getEmailsAfter(USER, tailFrom), w, i -> add(OTHER));
+                Bench.run("MailStore.emailsAfter(page 500)", params, t,
+                        i -> page(middle), w, i -> add(OTHER));
+            }
+        }
+        for (int t : threads) {
+            Bench.run("MailStore.addEmail", p, t, i -> add(USER));
+        }
+        for (int t : threads) {
+            Bench.run("MailStore.deleteEmail(+addEmail)", p, t, i -> {
+                store.deleteEmail(USER, oldest.getAndIncrement());
+                return add(USER);
+            });
+        }
+        for (int t : threads) {
+            Bench.run("MailStore.search(rare)", p, t, i -> search("17"));
+            Bench.run("MailStore.search(common AND rare)", p, t, i -> search("oggetto 17"));
+        }
+    }
+
+    /** Legge al massimo 500 risultati, come SEARCH;user;query;0;500. */
+    private Object search(String query) {
+        Iterator<Email> it = store.search(USER, query, 0);
+        Email last = null;
+        for (int n = 0; n < 500 && it.hasNext(); n++) last = it.next();
+        return last;
+    }
+
+    /** Scorre una pagina di 500 messaggi, come GET;user;lastId;500. */
+    private Object page(int lastId) {
+        Iterator<Email> it = store.emailsAfter(USER, lastId);
+        Email last = null;
+        for (int n = 0; n < 500 && it.hasNext(); n++) last = it.next();
+        return last;
+    }
+
+    private Object add(String to) {
+        Email e = email(to);
+        store.addEmail(e);
+        return e;
+    }
+
+    private Email email(String to) {
+        int id = store.getNextEmailId();
+        return new Email(id, FROM, List.of(to), "oggetto " + id % SUBJECTS, BODY, LocalDateTime.now());
+    }
+}
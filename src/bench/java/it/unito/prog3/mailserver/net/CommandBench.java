@@ -0,0 +1,75 @@
+package it.unito.prog3.mailserver.net;
+
+import it.unito.prog3.mailserver.bench.Bench;
+import shared.Protocol;
+import shared.Wire;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmark dell'analisi delle richieste testuali: {@link Command} (sui byte, riusato per
+ * connessione) contro il vecchio percorso {@code String} + {@code split} + Base64.
+ * <p>Sta nel package {@code net} perché {@link Command} non è pubblico. Ogni thread ha
+ * il suo {@link Command}, come ogni connessione.</p>
+ * <pre>
+ *   java -cp out:bench it.unito.prog3.mailserver.net.CommandBench [-bodies 64,4096] [-threads 1,4]
+ * </pre>
+ */
+public final class CommandBench {
+
+    private static final int MAX_THREADS = 64;
+
+    private CommandBench() {}
+
+    public static void main(String[] args) throws Exception {
+        int[] bodies = Bench.ints(Bench.arg(args, "-bodies", "64,4096"));
+        int[] threads = Bench.ints(Bench.arg(args, "-threads", "1,4"));
+        Command[] cmds = new Command[MAX_THREADS];
+        for (int i = 0; i < cmds.length; i++) cmds[i] = new Command();
+
+        byte[] get = "#12;GET;riccardo@mail.com;1500;100".getBytes(StandardCharsets.UTF_8);
+        for (int t : threads) {
+            Bench.run("Command.parse(GET)", "", t, i -> {
+                Command c = cmds[i];
+                c.clear();
+                c.append(get, 0, get.length);
+                c.parseLine();
+                return c.name() == Protocol.CMD_GET ? c.user(1).length() + c.intAt(2) + c.intAt(3) : null;
+            });
+            Bench.run("String.split(GET)", "", t, i -> {
+                String[] p = new String(get, StandardCharsets.UTF_8).trim().split(";");
+                return p[1].equalsIgnoreCase(Protocol.CMD_GET)
+                        ? p[2].length() + Integer.parseInt(p[3].trim()) + Integer.parseInt(p[4].trim()) : null;
+            });
+        }
+
+        for (int size : bodies) {
+            String body = "è".repeat(size / 4) + "a".repeat(size - size / 4 * 2);
+            byte[] send = String.join(";", "#7", "SEND", "davide@mail.com", "riccardo@mail.com, Orlando@mail.it",
+                    Wire.b64("Oggetto di prova"), Wire.b64(body)).getBytes(StandardCharsets.UTF_8);
+            String p = "body=" + size;
+            for (int t : threads) {
+                Bench.run("Command.parse(SEND)", p, t, i -> {
+                    Command c = cmds[i];
+                    c.clear();
+                    c.append(send, 0, send.length);
+                    c.parseLine();
+                    if (c.name() != Protocol.CMD_SEND) return null;
+                    List<String> to = new ArrayList<>(2);
+                    c.recipients(2, to);
+                    return c.user(1).length() + to.size() + c.text(3).length() + c.text(4).length();
+                });
+                Bench.run("String.split(SEND)", p, t, i -> {
+                    String[] f = new String(send, StandardCharsets.UTF_8).trim().split(";");
+                    if (!f[1].equalsIgnoreCase(Protocol.CMD_SEND)) return null;
+                    List<String> to = new ArrayList<>(2);
+                    for (String r : f[3].split(",")) to.add(r.trim().toLowerCase(Locale.ROOT));
+                    return f[2].length() + to.size() + Wire.unb64(f[4]).length() + Wire.unb64(f[5]).length();
+                });
+            }
+        }
+    }
+}
@@ -1,58 +1,133 @@
 package it.unito.prog3.mailserver.controller;
 
+import it.unito.prog3.mailserver.log.ServerLog;
 import it.unito.prog3.mailserver.net.ServerCore;
+import it.unito.prog3.mailserver.stats.Histogram;
+import it.unito.prog3.mailserver.stats.Metrics;
 import it.unito.prog3.mailserver.store.MailStore;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListView;
 import javafx.scene.shape.Circle;
+import shared.Protocol;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Controller della GUI del Mail Server.
  * Avvia/arresta il core del server, gestisce il log e
  * aggiorna lo stato visualizzato nella dashboard.
+ * <p>Il log arriva da un {@link ServerLog}: i thread del server non toccano mai
+ * il thread JavaFX, è la GUI che a ogni frame ne preleva un blocco di righe e le
+ * aggiunge a una {@link ListView} (virtualizzata) con al massimo {@link #MAX_LOG_LINES} righe.</p>
  */
 public class ServerController {
 
+    /** Righe tenute nella vista: oltre si eliminano le più vecchie. */
+    private static final int MAX_LOG_LINES = 5000;
+    /** Righe prelevate dal log per ogni frame. */
+    private static final int LINES_PER_FRAME = 500;
+    /** Intervallo di aggiornamento dei contatori in dashboard. */
+    private static final long STATS_PERIOD_NANOS = 500_000_000L;
+    private static final DateTimeFormatter TIME_FMT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
     //RIFERIMENTI UI
-    @FXML private TextArea logArea;
+    @FXML private ListView<String> logList;
     @FXML private Label statusLabel;
     @FXML private Circle statusDot;
     @FXML private Label connCountLabel;
     @FXML private Label lastEventLabel;
+    @FXML private Label reqRateLabel;
+    @FXML private Label latencyLabel;
+    @FXML private Label heapLabel;
 
     //COMPONENTI CORE
     private ServerCore core;
     private MailStore store;
+    private final ServerLog log = new ServerLog();
+    private AnimationTimer logPump;
+    private final Metrics metrics = Metrics.getInstance();
+    private long lastStatsNanos;
+    private long lastRequests;
 
     /**
      * Inizializzazione chiamata dopo il caricamento dell'FXML.
      */
     @FXML
     public void initialize() {
+        startLogPump();
         appendLog("GUI server pronta.");
-        this.store = MailStore.getInstance(this::appendLog);
-        this.core = new ServerCore(5555, store, this::appendLog);
+        this.store = MailStore.getInstance(log);
+        this.core = new ServerCore(5555, store, log);
         updateStatus(false);
     }
 
-    /** Appende una riga di log nella TextArea in modo thread-safe. */
+    /** Registra una riga di log; non blocca ed è chiamabile da qualunque thread. */
     public void appendLog(String message) {
-        if (message == null) return;
-        Platform.runLater(() -> {
-            if (logArea != null) {
-                logArea.appendText(message + System.lineSeparator());
-                lastEventLabel.setText(message);
+        log.accept(message);
+    }
+
+    /** A ogni frame sposta un blocco di righe dal {@link ServerLog} alla vista. */
+    private void startLogPump() {
+        List<String> batch = new ArrayList<>(LINES_PER_FRAME);
+        logPump = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (now - lastStatsNanos >= STATS_PERIOD_NANOS) updateStats(now);
+                long dropped = log.takeDropped();
+                if (dropped > 0) batch.add("… " + dropped + " righe di log scartate (buffer pieno)");
+                log.drain(e -> batch.add(format(e)), LINES_PER_FRAME);
+                if (batch.isEmpty()) return;
+                var items = logList.getItems();
+                items.addAll(batch);
+                if (items.size() > MAX_LOG_LINES) items.remove(0, items.size() - MAX_LOG_LINES);
+                logList.scrollTo(items.size() - 1);
+                lastEventLabel.setText(batch.get(batch.size() - 1));
+                batch.clear();
             }
-        });
+        };
+        logPump.start();
+    }
+
+    /** Connessioni, richieste al secondo, p99 di GET/SEND e heap, letti da {@link Metrics}. */
+    private void updateStats(long now) {
+        long requests = metrics.requests();
+        if (lastStatsNanos != 0) {
+            double secs = (now - lastStatsNanos) / 1e9;
+            reqRateLabel.setText(String.valueOf(Math.round((requests - lastRequests) / secs)));
+        }
+        lastStatsNanos = now;
+        lastRequests = requests;
+        connCountLabel.setText(String.valueOf(metrics.connections()));
+        latencyLabel.setText("GET " + p99Millis(Protocol.CMD_GET) + " · SEND " + p99Millis(Protocol.CMD_SEND));
+        Runtime rt = Runtime.getRuntime();
+        heapLabel.setText((rt.totalMemory() - rt.freeMemory()) / (1024 * 1024) + " / " + rt.maxMemory() / (1024 * 1024) + " MB");
+    }
+
+    private String p99Millis(String command) {
+        Histogram.Snapshot s = metrics.command(command).snapshot();
+        return (s.count() == 0) ? "—" : String.format("%.1f", s.p99() / 1000.0);
+    }
+
+    private static String format(ServerLog.Entry e) {
+        String time = TIME_FMT.format(Instant.ofEpochMilli(e.millis()));
+        return e.level() == ServerLog.Level.INFO
+                ? time + "  " + e.message()
+                : time + "  " + e.level() + "  " + e.message();
     }
 
     /** Pulisce l'area di log. */
     @FXML
     private void onClearLog() {
-        if (logArea != null) {
-            logArea.clear();
+        if (logList != null) {
+            logList.getItems().clear();
             appendLog("Log pulito.");
         }
     }
@@ -60,7 +135,7 @@ public class ServerController {
     /** Avvia il server core. */
     @FXML
     private void onStart() {
-        if (core == null) core = new ServerCore(5555, store, this::appendLog);
+        if (core == null) core = new ServerCore(5555, store, log);
         core.start();
         appendLog("Server avviato manualmente.");
         updateStatus(true);
@@ -81,6 +156,7 @@ public class ServerController {
         if (core != null) core.stop();
         appendLog("Shutdown richiesto. Bye.");
         updateStatus(false);
+        if (logPump != null) logPump.stop();
     }
 
     /** Aggiorna stato (Online/Offline). */
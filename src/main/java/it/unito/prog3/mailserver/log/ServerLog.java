@@ -0,0 +1,152 @@
+package it.unito.prog3.mailserver.log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Log del server su buffer circolare lock-free.
+ * <p>Chi scrive (thread delle richieste, journal, event loop) non si blocca mai: prenota
+ * una cella con un CAS e vi pubblica la voce; se il buffer è pieno la voce viene scartata
+ * e contata. Un solo consumatore (la GUI, a ogni frame) svuota il buffer a blocchi con
+ * {@link #drain}. La formattazione avviene nel consumatore, non nel thread che scrive.</p>
+ * <p>Come {@code Consumer<String>} registra a livello {@link Level#INFO}, quindi può essere
+ * passato a {@code MailStore} e {@code ServerCore} al posto di una lambda. Il livello
+ * minimo si sceglie con {@code -Dmailserver.logLevel=debug|info|warn|error} (default info):
+ * i messaggi per singola richiesta sono DEBUG ({@link #debugOf}) e normalmente spenti.</p>
+ */
+public final class ServerLog implements Consumer<String> {
+
+    /** Gravità di un messaggio. */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR;
+
+        static final String PROP = "mailserver.logLevel";
+
+        /** @return livello configurato, {@link #INFO} se assente o non valido */
+        public static Level fromProperty() {
+            String v = System.getProperty(PROP, INFO.name());
+            try {
+                return valueOf(v.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return INFO;
+            }
+        }
+    }
+
+    /** Voce del log: istante (ms), livello e testo. */
+    public record Entry(long millis, Level level, String message) {}
+
+    /** Capacità predefinita del buffer. */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final Level threshold;
+    /** Prossima cella da prenotare (produttori). */
+    private final AtomicLong tail = new AtomicLong();
+    /** Prossima cella da leggere: la scrive solo il consumatore. */
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+
+    /** Log con capacità {@link #DEFAULT_CAPACITY} e livello da {@link Level#fromProperty()}. */
+    public ServerLog() {
+        this(DEFAULT_CAPACITY, Level.fromProperty());
+    }
+
+    /**
+     * @param capacity  voci trattenute in attesa del consumatore (arrotondata a potenza di 2)
+     * @param threshold livello minimo registrato
+     */
+    public ServerLog(int capacity, Level threshold) {
+        int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(cap);
+        this.mask = cap - 1;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return consumer che registra a livello DEBUG su {@code log}, oppure {@code null} se
+     *         {@code log} non è un {@link ServerLog} o il livello DEBUG è spento: chi lo usa
+     *         controlla il {@code null} e non costruisce neanche il messaggio
+     */
+    public static Consumer<String> debugOf(Consumer<String> log) {
+        if (log instanceof ServerLog l && l.enabled(Level.DEBUG)) return l::debug;
+        return null;
+    }
+
+    /** @return true se i messaggi di quel livello vengono registrati */
+    public boolean enabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    @Override
+    public void accept(String message) {
+        log(Level.INFO, message);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Registra un messaggio senza bloccare.
+     *
+     * @return false se filtrato dal livello o scartato perché il buffer è pieno
+     */
+    public boolean log(Level level, String message) {
+        if (message == null || !enabled(level)) return false;
+        long t;
+        do {
+            t = tail.get();
+            if (t - head > mask) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        slots.setRelease((int) (t & mask), new Entry(System.currentTimeMillis(), level, message));
+        return true;
+    }
+
+    /**
+     * Passa a {@code sink} al massimo {@code max} voci, in ordine. Un solo consumatore alla volta.
+     * Si ferma alla prima cella prenotata ma non ancora pubblicata.
+     *
+     * @return voci consegnate
+     */
+    public synchronized int drain(Consumer<Entry> sink, int max) {
+        long h = head;
+        int n = 0;
+        while (n < max) {
+            int i = (int) (h & mask);
+            Entry e = slots.getAcquire(i);
+            if (e == null) break;
+            slots.setPlain(i, null);
+            h++;
+            n++;
+            head = h;
+            sink.accept(e);
+        }
+        return n;
+    }
+
+    /** @return voci in attesa del consumatore (stima) */
+    public int pending() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /** @return voci scartate dall'ultima chiamata (buffer pieno), azzerando il contatore */
+    public long takeDropped() {
+        return dropped.sumThenReset();
+    }
+}
@@ -0,0 +1,116 @@
+package it.unito.prog3.mailserver.net;
+
+import it.unito.prog3.mailserver.stats.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Controllo di ammissione condiviso da tutte le connessioni di un {@link ServerCore}:
+ * conta connessioni e comandi in corso rispetto ai {@link Limits} e applica i limiti di
+ * frequenza per utente e per indirizzo.
+ * <p>Ogni {@code tryOpen}/{@code tryStart} riuscito va chiuso dal corrispondente
+ * {@code closed}/{@code finished}.</p>
+ */
+final class Admission {
+
+    static final String BUSY = "Busy";
+    static final String RATE_LIMITED = "RateLimited";
+    private static final byte[] BUSY_LINE =
+            ("ERROR;" + BUSY + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    /** Senza limiti, per gli handler creati fuori da un server. */
+    static final Admission UNLIMITED = new Admission(Limits.UNLIMITED);
+
+    final Limits limits;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final RateLimiter sendUser, sendAddress, getUser, getAddress;
+    private final Metrics metrics = Metrics.getInstance();
+
+    Admission(Limits limits) {
+        this.limits = limits;
+        this.sendUser = new RateLimiter(limits.sendPerUser());
+        this.sendAddress = new RateLimiter(limits.sendPerAddress());
+        this.getUser = new RateLimiter(limits.getPerUser());
+        this.getAddress = new RateLimiter(limits.getPerAddress());
+    }
+
+    /** @return false se il server ha già il massimo di connessioni (contata, altrimenti) */
+    boolean tryOpen() {
+        if (limits.maxConnections() <= 0) return true;
+        if (connections.incrementAndGet() <= limits.maxConnections()) return true;
+        connections.decrementAndGet();
+        return false;
+    }
+
+    /** Una connessione ammessa da {@link #tryOpen()} si è chiusa. */
+    void closed() {
+        if (limits.maxConnections() > 0) connections.decrementAndGet();
+    }
+
+    /** @return false se ci sono già {@code maxInFlight} comandi in esecuzione */
+    boolean tryStart() {
+        if (limits.maxInFlight() <= 0) return true;
+        if (inFlight.incrementAndGet() <= limits.maxInFlight()) return true;
+        inFlight.decrementAndGet();
+        return false;
+    }
+
+    /** Un comando ammesso da {@link #tryStart()} è terminato. */
+    void finished() {
+        if (limits.maxInFlight() > 0) inFlight.decrementAndGet();
+    }
+
+    /** @return true se almeno un limite di frequenza è attivo */
+    boolean rateLimited() {
+        return sendUser.enabled() || sendAddress.enabled() || getUser.enabled() || getAddress.enabled();
+    }
+
+    /** Preleva {@code n} messaggi dai secchi SEND di mittente e indirizzo. */
+    boolean allowSend(String user, String address, int n) {
+        return both(sendUser, user, sendAddress, address, n);
+    }
+
+    /** Preleva una lettura dai secchi GET di utente e indirizzo. */
+    boolean allowGet(String user, String address) {
+        return both(getUser, user, getAddress, address, 1);
+    }
+
+    /**
+     * Preleva da entrambi i secchi o da nessuno: se l'indirizzo è al limite i gettoni
+     * dell'utente tornano indietro, altrimenti un indirizzo abusivo consumerebbe il
+     * budget degli utenti legittimi che lo condividono.
+     */
+    private static boolean both(RateLimiter perUser, String user, RateLimiter perAddress, String address, int n) {
+        if (!perUser.tryAcquire(user, n)) return false;
+        if (perAddress.tryAcquire(address, n)) return true;
+        perUser.refund(user, n);
+        return false;
+    }
+
+    /** Respinge una connessione appena accettata (socket bloccante): ERROR;Busy e chiusura. */
+    void reject(Socket s) {
+        metrics.busy();
+        try (s; OutputStream out = s.getOutputStream()) {
+            out.write(BUSY_LINE);
+        } catch (IOException ignored) {
+            // il client se n'è già andato
+        }
+    }
+
+    /** Come {@link #reject(Socket)}, per un canale NIO ancora bloccante. */
+    void reject(SocketChannel ch) {
+        metrics.busy();
+        try (ch) {
+            ch.write(ByteBuffer.wrap(BUSY_LINE));
+        } catch (IOException ignored) {
+            // il client se n'è già andato
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package it.unito.prog3.mailserver.net;
+
+import shared.Frame;
+import shared.Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Comando ricevuto, analizzato direttamente sui byte.
+ * <p>Un'istanza è riusata per tutte le richieste di una connessione: buffer e posizioni
+ * dei campi crescono una volta e poi restano, il nome del comando è confrontato senza
+ * creare stringhe e i numeri sono letti dalle cifre. Si allocano solo le {@code String}
+ * che finiscono nell'archivio (mittente, oggetto, corpo) e, per i campi Base64, il
+ * buffer decodificato da cui nascono; l'ultimo utente letto viene riusato.</p>
+ * <p>Non è thread-safe: una richiesta eseguita in parallelo lavora su una {@link #copy()}.</p>
+ */
+final class Command {
+
+    /** Lunghezza massima di una riga di comando (come per i frame binari). */
+    static final int MAX_LINE_BYTES = Frame.MAX_BYTES;
+
+    /** Nomi riconosciuti, in byte maiuscoli, con la costante corrispondente. */
+    private static final String[] NAMES = {
+            Protocol.CMD_LOGIN, Protocol.CMD_SEND, Protocol.CMD_SEND_BATCH, Protocol.CMD_GET,
+            Protocol.CMD_HEADERS, Protocol.CMD_FETCH, Protocol.CMD_DELETE, Protocol.CMD_WATCH,
+            Protocol.CMD_HELLO, Protocol.CMD_STATS, Protocol.CMD_SEARCH
+    };
+    private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+    static {
+        for (int i = 0; i < NAMES.length; i++) NAME_BYTES[i] = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] buf = new byte[256];
+    private int len;
+    private int[] start = new int[8];
+    private int[] end = new int[8];
+    private int fields;
+    /** Primo campo del comando (1 se c'è un tag testuale). */
+    private int base;
+    /** true per i frame binari: campi già in chiaro, separati dalle posizioni e non da ';'. */
+    private boolean raw;
+    /** Opcode del frame (solo se {@code raw}). */
+    private byte op;
+    private String tag;
+    private byte[] userBytes = new byte[0];
+    private String user;
+
+    /** Svuota il comando prima di accodarvi una nuova riga con {@link #append}. */
+    void clear() {
+        len = 0;
+    }
+
+    /** Accoda byte alla riga in costruzione. */
+    void append(byte[] b, int off, int n) {
+        ensure(len + n);
+        System.arraycopy(b, off, buf, len, n);
+        len += n;
+    }
+
+    /** @return byte accumulati nella riga in costruzione */
+    int length() {
+        return len;
+    }
+
+    /** @return copia dei byte accumulati (ad esempio dopo il passaggio al binario) */
+    byte[] bytes() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * Legge una riga (fino a {@code \n}) nel buffer e la separa in campi.
+     *
+     * @return false a fine flusso senza dati
+     * @throws IOException anche se la riga supera {@link #MAX_LINE_BYTES}
+     */
+    boolean readLine(InputStream in) throws IOException {
+        len = 0;
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (len == MAX_LINE_BYTES) throw new IOException("Riga troppo lunga");
+            if (len == buf.length) ensure(len + 1);
+            buf[len++] = (byte) b;
+        }
+        if (b < 0 && len == 0) return false;
+        parseLine();
+        return true;
+    }
+
+    /** Separa in campi la riga accumulata: spazi iniziali/finali e {@code \r} ignorati, tag estratto. */
+    void parseLine() {
+        raw = false;
+        tag = null;
+        int s = 0, e = len;
+        while (s < e && buf[s] <= ' ') s++;
+        while (e > s && buf[e - 1] <= ' ') e--;
+        fields = 0;
+        int f = s;
+        for (int i = s; i <= e; i++) {
+            if (i == e || buf[i] == ';') {
+                addField(f, i);
+                f = i + 1;
+            }
+        }
+        if (e == s) fields = 0;
+        base = 0;
+        if (fields > 0 && end[0] > start[0] && buf[start[0]] == Protocol.TAG_PREFIX.charAt(0)) {
+            base = 1;
+            tag = new String(buf, start[0] + 1, end[0] - start[0] - 1, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Carica i campi di un frame binario (tag compreso se presente). Il nome del
+     * comando viene dall'opcode: al suo posto c'è un campo vuoto, così gli indici
+     * dei parametri coincidono con quelli della riga testuale.
+     */
+    void load(Frame f) {
+        raw = true;
+        tag = null;
+        op = (byte) (f.op() & ~Protocol.TAG_FLAG);
+        int total = 0;
+        for (int i = 0; i < f.size(); i++) total += f.bytes(i).length;
+        ensure(total);
+        len = 0;
+        fields = 0;
+        base = 0;
+        int first = 0;
+        if ((f.op() & Protocol.TAG_FLAG) != 0) {
+            if (f.size() == 0) {
+                tag = "";
+                return;
+            }
+            copyField(f.bytes(0));
+            base = 1;
+            first = 1;
+            tag = str(-1);
+        }
+        addField(len, len);
+        for (int i = first; i < f.size(); i++) copyField(f.bytes(i));
+    }
+
+    private void copyField(byte[] b) {
+        System.arraycopy(b, 0, buf, len, b.length);
+        addField(len, len + b.length);
+        len += b.length;
+    }
+
+    /** @return copia indipendente, per eseguire la richiesta su un altro thread */
+    Command copy() {
+        Command c = new Command();
+        c.buf = Arrays.copyOf(buf, Math.max(len, 1));
+        c.len = len;
+        c.start = start.clone();
+        c.end = end.clone();
+        c.fields = fields;
+        c.base = base;
+        c.raw = raw;
+        c.op = op;
+        c.tag = tag;
+        return c;
+    }
+
+    /** @return true se la riga non contiene nulla */
+    boolean isBlank() {
+        return fields == 0;
+    }
+
+    /** @return tag della richiesta, {@code null} se assente ({@code ""} se vuoto) */
+    String tag() {
+        return tag;
+    }
+
+    /** @return numero di campi, nome del comando compreso */
+    int size() {
+        return fields - base;
+    }
+
+    /**
+     * @return costante del comando in {@link Protocol} (confronto senza distinzione di
+     *         maiuscole e senza allocare), {@code null} se sconosciuto
+     */
+    String name() {
+        if (size() == 0) return null;
+        if (raw) return Protocol.name(op);
+        int s = start[base], n = end[base] - s;
+        for (int k = 0; k < NAME_BYTES.length; k++) {
+            byte[] name = NAME_BYTES[k];
+            if (name.length != n) continue;
+            int i = 0;
+            while (i < n && (buf[s + i] & 0xDF) == name[i]) i++;
+            if (i == n) return NAMES[k];
+        }
+        return null;
+    }
+
+    /** @return true se il campo {@code i} esiste e non è vuoto */
+    boolean has(int i) {
+        if (i >= size()) return false;
+        int s = start[base + i], e = end[base + i];
+        while (s < e && buf[s] <= ' ') s++;
+        return s < e;
+    }
+
+    /** @return true se il campo {@code i} coincide con {@code ascii} */
+    boolean is(int i, String ascii) {
+        if (i >= size()) return false;
+        int s = start[base + i], n = end[base + i] - s;
+        if (n != ascii.length()) return false;
+        for (int k = 0; k < n; k++) if (buf[s + k] != ascii.charAt(k)) return false;
+        return true;
+    }
+
+    /** @return true se il campo {@code i} contiene il byte {@code c} */
+    boolean contains(int i, char c) {
+        for (int k = start[base + i]; k < end[base + i]; k++) if (buf[k] == c) return true;
+        return false;
+    }
+
+    /** Intero decimale letto dalle cifre del campo. */
+    int intAt(int i) {
+        long v = longAt(i);
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw new NumberFormatException("Fuori intervallo");
+        return (int) v;
+    }
+
+    /** Intero lungo letto dalle cifre del campo (spazi attorno ammessi). */
+    long longAt(int i) {
+        if (i >= size()) throw new NumberFormatException("Campo mancante");
+        int s = start[base + i], e = end[base + i];
+        while (s < e && buf[s] == ' ') s++;
+        while (e > s && buf[e - 1] == ' ') e--;
+        boolean neg = s < e && buf[s] == '-';
+        if (neg || (s < e && buf[s] == '+')) s++;
+        if (s == e || e - s > 18) throw new NumberFormatException("Numero non valido");
+        long v = 0;
+        for (int k = s; k < e; k++) {
+            int d = buf[k] - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("Numero non valido");
+            v = v * 10 + d;
+        }
+        return neg ? -v : v;
+    }
+
+    /** @return campo come testo UTF-8 */
+    String str(int i) {
+        int s = start[base + i];
+        return new String(buf, s, end[base + i] - s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Campo con un indirizzo utente: se coincide con quello della richiesta precedente
+     * si restituisce la stessa stringa, senza allocarne una nuova.
+     */
+    String user(int i) {
+        int s = start[base + i], n = end[base + i] - s;
+        if (user != null && Arrays.equals(buf, s, s + n, userBytes, 0, userBytes.length)) return user;
+        userBytes = Arrays.copyOfRange(buf, s, s + n);
+        user = new String(userBytes, StandardCharsets.UTF_8);
+        return user;
+    }
+
+    /**
+     * Campo di testo libero (oggetto, corpo): nel protocollo testuale è in Base64, decodificato
+     * con {@link Base64} (intrinseco nella JVM, molto più rapido di un ciclo sui byte); se non
+     * è Base64 valido si usa così com'è.
+     */
+    String text(int i) {
+        int s = start[base + i], e = end[base + i];
+        if (!raw) {
+            try {
+                ByteBuffer d = Base64.getDecoder().decode(ByteBuffer.wrap(buf, s, e - s));
+                return new String(d.array(), 0, d.limit(), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException notBase64) {
+                // testo in chiaro
+            }
+        }
+        return new String(buf, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Destinatari separati da virgola, in minuscolo e senza spazi, aggiunti a {@code out}.
+     */
+    void recipients(int i, List<String> out) {
+        int s = start[base + i], e = end[base + i];
+        int f = s;
+        for (int k = s; k <= e; k++) {
+            if (k == e || buf[k] == ',') {
+                int a = f, b = k;
+                while (a < b && buf[a] <= ' ') a++;
+                while (b > a && buf[b - 1] <= ' ') b--;
+                if (a < b) {
+                    for (int j = a; j < b; j++) {
+                        if (buf[j] >= 'A' && buf[j] <= 'Z') buf[j] += 'a' - 'A';
+                    }
+                    out.add(new String(buf, a, b - a, StandardCharsets.UTF_8));
+                }
+                f = k + 1;
+            }
+        }
+    }
+
+    private void addField(int s, int e) {
+        if (fields == start.length) {
+            start = Arrays.copyOf(start, fields * 2);
+            end = Arrays.copyOf(end, fields * 2);
+        }
+        start[fields] = s;
+        end[fields] = e;
+        fields++;
+    }
+
+    private void ensure(int cap) {
+        if (cap > buf.length) buf = Arrays.copyOf(buf, Math.max(cap, buf.length * 2));
+    }
+
+    /** Riga originale (per un frame: nome e campi separati da ';'), per i log. */
+    @Override
+    public String toString() {
+        if (!raw) return new String(buf, 0, len, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields; i++) {
+            if (i > 0) sb.append(';');
+            if (i < base) sb.append(Protocol.TAG_PREFIX);
+            sb.append(i == base ? name() : str(i - base));
+        }
+        return sb.toString();
+    }
+}
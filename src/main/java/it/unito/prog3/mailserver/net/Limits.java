@@ -0,0 +1,50 @@
+package it.unito.prog3.mailserver.net;
+
+/**
+ * Limiti di carico del server, letti all'avvio dalle proprietà {@code mailserver.*}.
+ * <p>Oltre i limiti il server risponde {@code ERROR;Busy} (connessioni, lavoro in coda) o
+ * {@code ERROR;RateLimited} (frequenza per utente/indirizzo) invece di accumulare thread e
+ * memoria. Un valore 0 disattiva il limite corrispondente.</p>
+ *
+ * @param maxConnections connessioni aperte contemporaneamente; le altre ricevono ERROR;Busy e sono chiuse
+ * @param workers        thread del pool in modalità THREADS (uno per connessione); 0 = pool illimitato
+ * @param queue          connessioni in attesa di un thread in modalità THREADS; oltre, ERROR;Busy
+ * @param maxInFlight    comandi in esecuzione su virtual thread in tutto il server (NIO e richieste
+ *                       con tag); oltre, ERROR;Busy
+ * @param idleTimeoutMs  chiusura delle connessioni che non inviano nulla per questo tempo; deve
+ *                       superare {@link shared.Protocol#WATCH_MAX_MS}
+ * @param sendPerUser    SEND (messaggi) al secondo per mittente
+ * @param sendPerAddress SEND (messaggi) al secondo per indirizzo IP
+ * @param getPerUser     letture (GET, HEADERS, FETCH, WATCH, SEARCH) al secondo per utente
+ * @param getPerAddress  letture al secondo per indirizzo IP
+ */
+public record Limits(int maxConnections, int workers, int queue, int maxInFlight, long idleTimeoutMs,
+                     double sendPerUser, double sendPerAddress, double getPerUser, double getPerAddress) {
+
+    /** Nessun limite: il comportamento precedente. */
+    public static final Limits UNLIMITED = new Limits(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * Limiti configurati con {@code -Dmailserver.maxConnections} (default 10000),
+     * {@code .workers} (1024), {@code .queue} (256), {@code .maxInFlight} (4096),
+     * {@code .idleTimeoutMs} (600000) e {@code .rate.sendPerUser}, {@code .rate.sendPerAddress},
+     * {@code .rate.getPerUser}, {@code .rate.getPerAddress} (richieste al secondo, spenti di default).
+     */
+    public static Limits fromProperties() {
+        return new Limits(
+                Integer.getInteger("mailserver.maxConnections", 10_000),
+                Integer.getInteger("mailserver.workers", 1024),
+                Integer.getInteger("mailserver.queue", 256),
+                Integer.getInteger("mailserver.maxInFlight", 4096),
+                Long.getLong("mailserver.idleTimeoutMs", 600_000L),
+                rate("sendPerUser"), rate("sendPerAddress"), rate("getPerUser"), rate("getPerAddress"));
+    }
+
+    private static double rate(String name) {
+        try {
+            return Math.max(0, Double.parseDouble(System.getProperty("mailserver.rate." + name, "0")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
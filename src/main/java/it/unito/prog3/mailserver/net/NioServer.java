@@ -0,0 +1,432 @@
+package it.unito.prog3.mailserver.net;
+
+import it.unito.prog3.mailserver.stats.Metrics;
+import it.unito.prog3.mailserver.store.MailStore;
+import shared.Frame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Front end non bloccante del Mail Server basato su {@link Selector}.
+ * <p>
+ * Un thread accetta le connessioni e le distribuisce a pochi event loop, che
+ * leggono i byte, separano le righe e scrivono le risposte. L'esecuzione dei
+ * comandi è delegata a {@link RequestHandler#handle} su un pool di worker:
+ * i thread sono occupati solo dalle richieste attive, non dai socket aperti.
+ * </p>
+ * <p>Per connessione i comandi senza tag si eseguono uno alla volta, nell'ordine di
+ * arrivo; quelli con tag anche in parallelo (vedi {@link RequestHandler}). Dopo
+ * l'handshake binario ({@code HELLO;BIN1}) i byte in ingresso sono separati in
+ * {@link Frame} invece che in righe: il client deve attendere {@code OK;BIN1} prima
+ * di inviare il primo frame.</p>
+ * <p>Le risposte sono liste di buffer ({@link Reply#buffered()}) scritte con una gathering
+ * write: i corpi arrivano dalla mappatura dei segmenti al socket senza copie sull'heap.</p>
+ */
+class NioServer {
+
+    /** Comandi in coda oltre i quali si smette di leggere dal socket. */
+    private static final int MAX_PENDING_LINES = 64;
+    /** Byte di risposta in attesa oltre i quali si smette di leggere: il client non legge. */
+    private static final long MAX_PENDING_REPLY_BYTES = 4L * 1024 * 1024;
+    /** Buffer passati a una singola gathering write. */
+    private static final int MAX_GATHER = 64;
+
+    private final int port;
+    private final MailStore store;
+    private final Consumer<String> log;
+    private final ExecutorService workers;
+    private final Admission admission;
+    private final EventLoop[] loops;
+
+    private volatile boolean running;
+    private Thread acceptorThread;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private int nextLoop;
+
+    /**
+     * @param port    porta TCP di ascolto
+     * @param store   archivio dati condiviso
+     * @param log     callback per log eventi
+     * @param loops   numero di event loop di I/O
+     * @param workers   esecutore dei comandi
+     * @param admission limiti di connessioni, comandi in corso e inattività
+     */
+    NioServer(int port, MailStore store, Consumer<String> log, int loops, ExecutorService workers,
+              Admission admission) {
+        this.port = port;
+        this.store = store;
+        this.log = log;
+        this.workers = workers;
+        this.admission = admission;
+        this.loops = new EventLoop[Math.max(1, loops)];
+    }
+
+    /** Apre il canale di ascolto e avvia acceptor ed event loop. */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        acceptorThread = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+        log.accept("Server (NIO, " + loops.length + " loop) in ascolto su porta " + port);
+    }
+
+    /** Chiude il canale di ascolto, gli event loop e tutte le connessioni. */
+    void stop() {
+        running = false;
+        try { if (serverChannel != null) serverChannel.close(); } catch (IOException ignored) {}
+        if (acceptSelector != null) acceptSelector.wakeup();
+        for (EventLoop l : loops) if (l != null) l.selector.wakeup();
+        if (acceptorThread != null && acceptorThread.isAlive()) {
+            try { acceptorThread.join(1500); } catch (InterruptedException ignored) {}
+        }
+    }
+
+    /** @return indirizzo IP del client, {@code null} se non disponibile */
+    private static String hostOf(SocketChannel ch) {
+        try {
+            return (ch.getRemoteAddress() instanceof InetSocketAddress a) ? a.getAddress().getHostAddress() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                acceptSelector.select();
+                Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                    SocketChannel ch;
+                    while ((ch = serverChannel.accept()) != null) {
+                        if (!admission.tryOpen()) {
+                            admission.reject(ch);
+                            continue;
+                        }
+                        ch.configureBlocking(false);
+                        log.accept("🔌 Connessione da " + ch.getRemoteAddress());
+                        EventLoop loop = loops[nextLoop++ % loops.length];
+                        SocketChannel accepted = ch;
+                        loop.execute(() -> loop.register(accepted));
+                    }
+                }
+            }
+        } catch (ClosedSelectorException | ClosedChannelException ignored) {
+            // stop()
+        } catch (IOException ioe) {
+            if (running) log.accept("Errore server: " + ioe.getMessage());
+        } finally {
+            running = false;
+            try { acceptSelector.close(); } catch (IOException ignored) {}
+            log.accept("👂 Listener terminato.");
+        }
+    }
+
+    /** Event loop di I/O: tutti gli accessi allo stato delle connessioni avvengono qui. */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /** Esegue {@code task} sul thread del loop. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            Connection c = new Connection(ch, this);
+            try {
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            } catch (IOException e) {
+                c.close(null);
+            }
+        }
+
+        /** Chiude le connessioni che non inviano nulla da {@code idleTimeoutMs} e non hanno comandi in corso. */
+        private void closeIdle(long now) {
+            long idle = admission.limits.idleTimeoutMs() * 1_000_000;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection c && c.inFlight == 0 && now - c.lastActive > idle) {
+                    c.close("Connessione inattiva chiusa");
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long sweepMillis = admission.limits.idleTimeoutMs() > 0
+                    ? Math.max(10, Math.min(1000, admission.limits.idleTimeoutMs() / 2)) : 0;
+            long nextSweep = System.nanoTime();
+            try {
+                while (running) {
+                    selector.select(sweepMillis);
+                    if (sweepMillis > 0 && System.nanoTime() - nextSweep >= 0) {
+                        nextSweep = System.nanoTime() + sweepMillis * 1_000_000;
+                        closeIdle(System.nanoTime());
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) c.onReadable();
+                            if (key.isValid() && key.isWritable()) c.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            c.close("Connessione interrotta: " + e.getMessage());
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) log.accept("Errore event loop: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection c) c.close(null);
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /** Stato di una connessione: buffer di lettura, comandi in attesa e risposte da scrivere. */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final RequestHandler handler;
+        private final ByteBuffer readBuf = ByteBuffer.allocate(8192);
+        /** Comandi già eseguiti, riusati per le righe successive. */
+        private final Queue<Command> spare = new ArrayDeque<>();
+        /** Riga in corso (protocollo testuale). */
+        private Command partial = new Command();
+        /** Frame in corso (protocollo binario), in modalità scrittura. */
+        private ByteBuffer frames;
+        private final Queue<Command> requests = new ArrayDeque<>();
+        private final Queue<ByteBuffer> replies = new ArrayDeque<>();
+        /** Byte ancora da scrivere in {@link #replies}. */
+        private long pending;
+        private SelectionKey key;
+        /** Comandi in esecuzione sui worker. */
+        private int inFlight;
+        /** true se quello in esecuzione è un comando senza tag. */
+        private boolean exclusive;
+        private boolean eof;
+        private boolean closed;
+        /** Ultima lettura o risposta ({@link System#nanoTime()}), per il timeout di inattività. */
+        private long lastActive = System.nanoTime();
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.handler = new RequestHandler(store, log, admission, hostOf(channel));
+            Metrics.getInstance().connectionOpened();
+        }
+
+        void onReadable() throws IOException {
+            lastActive = System.nanoTime();
+            int n = channel.read(readBuf);
+            if (n < 0) {
+                eof = true;
+                if (frames == null && partial.length() > 0) addLine();
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                dispatch();
+                closeIfIdle();
+                return;
+            }
+            readBuf.flip();
+            if (frames != null) splitFrames(readBuf.array(), readBuf.limit());
+            else splitLines(readBuf.array(), readBuf.limit());
+            readBuf.clear();
+            if (partial.length() > Command.MAX_LINE_BYTES) {
+                close("Riga troppo lunga da " + channel.getRemoteAddress());
+                return;
+            }
+            if (!accepting()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            dispatch();
+        }
+
+        private void splitLines(byte[] arr, int len) {
+            int start = 0;
+            for (int i = 0; i < len; i++) {
+                if (arr[i] == '\n') {
+                    partial.append(arr, start, i - start);
+                    addLine();
+                    start = i + 1;
+                }
+            }
+            partial.append(arr, start, len - start);
+        }
+
+        private void addLine() {
+            partial.parseLine();
+            requests.add(partial);
+            partial = spareCommand();
+        }
+
+        private Command spareCommand() {
+            Command c = spare.poll();
+            if (c == null) return new Command();
+            c.clear();
+            return c;
+        }
+
+        /** Accoda i frame completi; i byte di un frame incompleto restano in {@link #frames}. */
+        private void splitFrames(byte[] arr, int len) throws IOException {
+            if (frames.remaining() < len) {
+                int need = frames.position() + len;
+                frames = ByteBuffer.allocate(Math.max(need, frames.capacity() * 2)).put(frames.flip());
+            }
+            frames.put(arr, 0, len).flip();
+            Frame f;
+            while ((f = Frame.decode(frames)) != null) {
+                Command c = spareCommand();
+                c.load(f);
+                requests.add(c);
+            }
+            if (frames.position() == 0) {
+                // nessun frame completo: si riprende ad accodare senza spostare i byte
+                frames.position(frames.limit()).limit(frames.capacity());
+            } else {
+                frames.compact();
+            }
+        }
+
+        /**
+         * Passa ai worker i comandi eseguibili: quelli con tag finché ci sono posti liberi,
+         * quello senza tag solo quando non c'è altro in corso. Con troppe risposte ancora da
+         * scrivere si aspetta che il client le legga.
+         */
+        private void dispatch() {
+            while (!requests.isEmpty() && channel.isOpen() && !exclusive && pending < MAX_PENDING_REPLY_BYTES) {
+                Command next = requests.peek();
+                boolean tagged = RequestHandler.isTagged(next);
+                if (tagged ? inFlight >= RequestHandler.MAX_INFLIGHT : inFlight > 0) return;
+                requests.poll();
+                inFlight++;
+                exclusive = !tagged;
+                if (!admission.tryStart()) {
+                    // troppi comandi in corso nel server: si risponde subito senza eseguirlo
+                    Reply out = Reply.buffered();
+                    handler.reject(next, out, Admission.BUSY);
+                    List<ByteBuffer> reply = out.buffers();
+                    loop.execute(() -> onReply(next, reply));
+                    continue;
+                }
+                workers.execute(() -> {
+                    Reply out = Reply.buffered();
+                    try {
+                        handler.handle(next, out);
+                    } catch (RuntimeException e) {
+                        log.accept("Errore handler: " + e.getMessage());
+                    } finally {
+                        admission.finished();
+                    }
+                    List<ByteBuffer> reply = out.buffers();
+                    loop.execute(() -> onReply(next, reply));
+                });
+            }
+        }
+
+        private void onReply(Command done, List<ByteBuffer> reply) {
+            lastActive = System.nanoTime();
+            inFlight--;
+            exclusive = false;
+            spare.add(done);
+            if (!channel.isOpen()) return;
+            try {
+                if (frames == null && handler.binary()) {
+                    // handshake riuscito: i byte già ricevuti dopo la riga HELLO sono frame
+                    frames = ByteBuffer.allocate(8192);
+                    byte[] rest = partial.bytes();
+                    partial.clear();
+                    splitFrames(rest, rest.length);
+                }
+                if (!reply.isEmpty()) {
+                    for (ByteBuffer b : reply) pending += b.remaining();
+                    replies.addAll(reply);
+                    onWritable();
+                }
+                if (accepting() && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                dispatch();
+                closeIfIdle();
+            } catch (IOException | CancelledKeyException e) {
+                close("Connessione interrotta: " + e.getMessage());
+            }
+        }
+
+        void onWritable() throws IOException {
+            while (!replies.isEmpty()) {
+                int n = Math.min(replies.size(), MAX_GATHER);
+                ByteBuffer[] batch = new ByteBuffer[n];
+                Iterator<ByteBuffer> it = replies.iterator();
+                for (int i = 0; i < n; i++) batch[i] = it.next();
+                pending -= channel.write(batch);
+                while (!replies.isEmpty() && !replies.peek().hasRemaining()) replies.poll();
+                if (batch[n - 1].hasRemaining()) break; // buffer del socket pieno
+            }
+            int ops = key.interestOps();
+            ops = replies.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+            // letture e comandi ripartono quando il client ha smaltito le risposte
+            ops = accepting() ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ;
+            key.interestOps(ops);
+            dispatch();
+            closeIfIdle();
+        }
+
+        /** @return true se si possono leggere altri comandi: coda e risposte in attesa sotto i limiti */
+        private boolean accepting() {
+            return !eof && requests.size() < MAX_PENDING_LINES && pending < MAX_PENDING_REPLY_BYTES;
+        }
+
+        /** Il client ha chiuso: si chiude dopo aver risposto a tutte le righe già ricevute. */
+        private void closeIfIdle() {
+            if (eof && inFlight == 0 && requests.isEmpty() && replies.isEmpty()) close(null);
+        }
+
+        void close(String reason) {
+            if (closed) return;
+            closed = true;
+            Metrics.getInstance().connectionClosed();
+            admission.closed();
+            if (reason != null) log.accept(reason);
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package it.unito.prog3.mailserver.net;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token bucket per chiave (utente o indirizzo): {@code rate} gettoni al secondo, accumulabili
+ * fino a {@link #BURST_SECONDS} secondi di traffico.
+ * <p>I secchi rimasti pieni sono equivalenti a uno nuovo: quando le chiavi diventano molte
+ * vengono tolti, così la mappa non cresce con ogni indirizzo mai visto.</p>
+ */
+final class RateLimiter {
+
+    private static final double BURST_SECONDS = 2;
+    /** Chiavi oltre le quali si tolgono i secchi pieni (al più una volta al secondo). */
+    private static final int PRUNE_AT = 10_000;
+
+    private static final class Bucket {
+        double tokens;
+        long last;
+
+        Bucket(double tokens, long last) {
+            this.tokens = tokens;
+            this.last = last;
+        }
+    }
+
+    private final double rate;
+    private final double capacity;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile long lastPrune = System.nanoTime();
+
+    /** @param rate gettoni al secondo, 0 per nessun limite */
+    RateLimiter(double rate) {
+        this.rate = rate;
+        this.capacity = Math.max(1, rate * BURST_SECONDS);
+    }
+
+    boolean enabled() {
+        return rate > 0;
+    }
+
+    /**
+     * Preleva {@code n} gettoni (al più la capacità del secchio, così un lotto grande passa
+     * a secchio pieno).
+     *
+     * @return false se non ce ne sono abbastanza: la richiesta va rifiutata
+     */
+    boolean tryAcquire(String key, int n) {
+        if (rate <= 0 || key == null) return true;
+        long now = System.nanoTime();
+        if (buckets.size() > PRUNE_AT && now - lastPrune > 1_000_000_000L) prune(now);
+        double cost = Math.min(n, capacity);
+        Bucket b = buckets.computeIfAbsent(key, k -> new Bucket(capacity, now));
+        synchronized (b) {
+            b.tokens = Math.min(capacity, b.tokens + (now - b.last) * rate / 1e9);
+            b.last = now;
+            if (b.tokens < cost) return false;
+            b.tokens -= cost;
+            return true;
+        }
+    }
+
+    /** Restituisce {@code n} gettoni prelevati da una richiesta poi rifiutata per un altro limite. */
+    void refund(String key, int n) {
+        if (rate <= 0 || key == null) return;
+        Bucket b = buckets.get(key);
+        if (b == null) return; // tolto perché pieno
+        synchronized (b) {
+            b.tokens = Math.min(capacity, b.tokens + Math.min(n, capacity));
+        }
+    }
+
+    private void prune(long now) {
+        lastPrune = now;
+        long full = (long) (capacity / rate * 1e9);
+        buckets.values().removeIf(b -> {
+            synchronized (b) {
+                return now - b.last >= full;
+            }
+        });
+    }
+}
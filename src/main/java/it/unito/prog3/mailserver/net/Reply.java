@@ -0,0 +1,178 @@
+package it.unito.prog3.mailserver.net;
+
+import shared.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Destinazione della risposta a un comando.
+ * <p>Oltre alle righe di testo accetta byte già codificati (ad esempio i corpi Base64
+ * mappati in memoria dal BodyStore), che vengono copiati senza passare da {@code String}.</p>
+ * <ul>
+ *   <li>{@link #to(OutputStream)}: scrive sul flusso del socket (modalità bloccanti);</li>
+ *   <li>{@link #buffered()}: raccoglie una lista di buffer da scrivere con una gathering
+ *       write ({@link NioServer}); i buffer passati a {@link #write(ByteBuffer)} non vengono copiati.</li>
+ * </ul>
+ * <p>Per le richieste con tag ({@link #tag(String, boolean)}) ogni riga testuale viene
+ * prefissata con {@code #tag;}, così il client può associarla alla richiesta.</p>
+ */
+class Reply implements Closeable {
+
+    private static final int COPY_CHUNK = 8192;
+    /** Buffer più piccoli di così vengono copiati nel testo invece di aggiungere un elemento alla gathering write. */
+    private static final int GATHER_MIN = 1024;
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream text;
+    private final List<ByteBuffer> buffers;
+    private byte[] chunk;
+    private String tag;
+    private byte[] linePrefix;
+    private boolean lineStart = true;
+
+    private Reply(OutputStream out, List<ByteBuffer> buffers) {
+        this.out = out;
+        this.buffers = buffers;
+        this.text = (buffers != null) ? new ByteArrayOutputStream() : null;
+    }
+
+    /** @return risposta scritta direttamente su {@code out} */
+    static Reply to(OutputStream out) {
+        return new Reply(out, null);
+    }
+
+    /** @return risposta raccolta in memoria come lista di buffer */
+    static Reply buffered() {
+        return new Reply(null, new ArrayList<>());
+    }
+
+    /**
+     * Associa la risposta al tag della richiesta.
+     *
+     * @param tag         tag scelto dal client
+     * @param prefixLines true per prefissare ogni riga con {@code #tag;} (protocollo testuale)
+     */
+    void tag(String tag, boolean prefixLines) {
+        this.tag = tag;
+        this.linePrefix = prefixLines ? (Protocol.TAG_PREFIX + tag + ";").getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /** @return tag della richiesta, {@code null} se non ne ha */
+    String tag() {
+        return tag;
+    }
+
+    /** Scrive del testo (UTF-8). */
+    void print(String s) {
+        startLine();
+        writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Scrive una riga di testo terminata da {@code \n}. */
+    void println(String s) {
+        print(s);
+        writeByte('\n');
+        lineStart = true;
+    }
+
+    /**
+     * Scrive i byte rimanenti di {@code src} senza modificarne la posizione.
+     * In modalità buffer i buffer piccoli (parti già codificate) si uniscono al testo.
+     */
+    void write(ByteBuffer src) {
+        startLine();
+        ByteBuffer b = src.duplicate();
+        if (buffers != null && b.remaining() >= GATHER_MIN) {
+            sealText();
+            buffers.add(b);
+            return;
+        }
+        if (b.hasArray()) {
+            writeBytes(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            return;
+        }
+        if (chunk == null) chunk = new byte[COPY_CHUNK];
+        while (b.hasRemaining()) {
+            int n = Math.min(chunk.length, b.remaining());
+            b.get(chunk, 0, n);
+            writeBytes(chunk, 0, n);
+        }
+    }
+
+    /** Come {@link #write(ByteBuffer)}, per byte che terminano con {@code \n}: la riga si chiude. */
+    void writeLine(ByteBuffer src) {
+        write(src);
+        lineStart = true;
+    }
+
+    /**
+     * @return buffer raccolti (solo per {@link #buffered()}), pronti per la scrittura
+     */
+    List<ByteBuffer> buffers() {
+        sealText();
+        return buffers;
+    }
+
+    /** Invia al socket quanto scritto finora (modalità flusso). */
+    void flush() {
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) out.close();
+    }
+
+    private void startLine() {
+        if (!lineStart) return;
+        lineStart = false;
+        if (linePrefix != null) writeBytes(linePrefix);
+    }
+
+    private void sealText() {
+        if (text.size() == 0) return;
+        buffers.add(ByteBuffer.wrap(text.toByteArray()));
+        text.reset();
+    }
+
+    private void writeByte(int b) {
+        if (buffers != null) {
+            text.write(b);
+            return;
+        }
+        try {
+            out.write(b);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeBytes(byte[] b) {
+        writeBytes(b, 0, b.length);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) {
+        if (buffers != null) {
+            text.write(b, off, len);
+            return;
+        }
+        try {
+            out.write(b, off, len);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,32 +1,64 @@
 package it.unito.prog3.mailserver.net;
 
+import it.unito.prog3.mailserver.log.ServerLog;
+import it.unito.prog3.mailserver.stats.Histogram;
+import it.unito.prog3.mailserver.stats.Metrics;
 import it.unito.prog3.mailserver.store.MailStore;
 import shared.Email;
+import shared.Frame;
 import shared.Protocol;
-import shared.Wire;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.util.Arrays;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 /**
  * Gestisce una singola connessione client.
  * <p>Legge un comando testuale, lo interpreta e invia la risposta.</p>
+ * <p>I comandi sono analizzati sui byte da {@link Command} ed eseguiti da
+ * {@link #handle(Command, Reply)}, usato sia dal ciclo bloccante di {@link #run()}
+ * sia dal front end non bloccante {@link NioServer}.</p>
+ * <p>Dopo {@code HELLO;BIN1} la connessione passa al protocollo binario: i comandi
+ * arrivano come {@link Frame} e le risposte hanno gli stessi campi delle righe
+ * testuali, ma senza Base64.</p>
+ * <p>Le richieste con tag ({@code #tag;COMANDO;...} o frame con {@link Protocol#TAG_FLAG})
+ * possono essere eseguite in parallelo, al massimo {@link #MAX_INFLIGHT} per connessione,
+ * e le loro risposte arrivano nell'ordine di completamento, marcate con lo stesso tag.
+ * Una richiesta senza tag attende la fine di quelle in corso e blocca le successive,
+ * quindi i client che non usano i tag vedono sempre risposte in ordine.</p>
  */
 public class RequestHandler implements Runnable {
 
+    /** Richieste con tag eseguite contemporaneamente su una connessione. */
+    static final int MAX_INFLIGHT = 16;
+    /** Con {@code -Dmailserver.logPayload=true} i log DEBUG riportano la richiesta intera. */
+    static final boolean LOG_PAYLOAD = Boolean.getBoolean("mailserver.logPayload");
+
     private final Socket socket;
     private final MailStore store;
     private final Consumer<String> log;
+    /** Log per singola richiesta (DEBUG), {@code null} se spento. */
+    private final Consumer<String> trace;
+    private final WireCache wire = WireCache.getInstance();
+    private final Metrics metrics = Metrics.getInstance();
+    private final Admission admission;
+    /** Indirizzo IP del client, chiave dei limiti di frequenza. */
+    private final String remote;
+    /** true dopo l'handshake binario: cambia la codifica di richieste e risposte. */
+    private volatile boolean binary;
 
     /**
      * @param socket connessione accettata dal server
@@ -34,139 +66,611 @@ public class RequestHandler implements Runnable {
      * @param log    callback per log eventi (usare s -> {} per disabilitare)
      */
     public RequestHandler(Socket socket, MailStore store, Consumer<String> log) {
+        this(socket, store, log, Admission.UNLIMITED,
+                socket == null ? null : socket.getInetAddress().getHostAddress());
+    }
+
+    /**
+     * Handler senza socket proprio: i comandi arrivano da {@link #handle(Command, Reply)}.
+     *
+     * @param store     archivio dati condiviso
+     * @param log       callback per log eventi
+     * @param admission limiti del server
+     * @param remote    indirizzo IP del client
+     */
+    RequestHandler(MailStore store, Consumer<String> log, Admission admission, String remote) {
+        this(null, store, log, admission, remote);
+    }
+
+    /** Handler di una connessione ammessa da {@code admission}, che ne segnala la chiusura. */
+    RequestHandler(Socket socket, MailStore store, Consumer<String> log, Admission admission, String remote) {
         this.socket = socket;
         this.store = store;
         this.log = (log == null) ? s -> {} : log;
+        this.trace = ServerLog.debugOf(log);
+        this.admission = admission;
+        this.remote = remote;
     }
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true)) {
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.isBlank()) continue;
-
-                log.accept("Ricevuto: [" + line + "]");
-
-                String[] p = line.trim().split(";", -1);
-                String cmd = p[0].toUpperCase();
+        Semaphore slots = new Semaphore(MAX_INFLIGHT);
+        ReentrantLock outLock = new ReentrantLock();
+        Command c = new Command();
+        metrics.connectionOpened();
+        try {
+            if (admission.limits.idleTimeoutMs() > 0) socket.setSoTimeout((int) admission.limits.idleTimeoutMs());
+        } catch (SocketException ignored) {
+            // si chiuderà al primo errore di lettura
+        }
+        try (InputStream in = new BufferedInputStream(socket.getInputStream());
+             Reply out = Reply.to(new BufferedOutputStream(socket.getOutputStream()))) {
 
-                switch (cmd) {
-                    case Protocol.CMD_LOGIN -> handleLogin(p, out);
-                    case Protocol.CMD_SEND -> handleSend(p, out);
-                    case Protocol.CMD_GET -> handleGet(p, out);
-                    case Protocol.CMD_DELETE -> handleDelete(p, out);
-                    default -> out.println(Protocol.RESP_ERROR + ";UnknownCommand");
+            while (true) {
+                try {
+                    if (binary) {
+                        Frame f = Frame.read(in);
+                        if (f == null) break;
+                        c.load(f);
+                    } else if (!c.readLine(in)) {
+                        break;
+                    }
+                } catch (SocketTimeoutException idle) {
+                    // una richiesta con tag ancora in corso (un WATCH) tiene aperta la connessione
+                    if (!binary && c.length() == 0 && slots.availablePermits() < MAX_INFLIGHT) continue;
+                    log.accept("Connessione inattiva chiusa: " + socket.getRemoteSocketAddress());
+                    break;
+                }
+                if (isTagged(c)) {
+                    if (!admission.tryStart()) {
+                        Reply r = Reply.buffered();
+                        reject(c, r, Admission.BUSY);
+                        write(out, outLock, r);
+                        continue;
+                    }
+                    Command job = c.copy();
+                    slots.acquire();
+                    Thread.ofVirtual().name("tagged-request").start(() -> {
+                        try {
+                            Reply r = Reply.buffered();
+                            handle(job, r);
+                            write(out, outLock, r);
+                        } catch (UncheckedIOException ioe) {
+                            log.accept("Connessione interrotta: " + ioe.getCause().getMessage());
+                        } catch (RuntimeException e) {
+                            log.accept("Errore handler: " + e.getMessage());
+                        } finally {
+                            slots.release();
+                            admission.finished();
+                        }
+                    });
+                } else {
+                    // senza tag: si attende la fine di quelle in corso
+                    slots.acquire(MAX_INFLIGHT);
+                    try {
+                        handle(c, out);
+                        out.flush();
+                    } finally {
+                        slots.release(MAX_INFLIGHT);
+                    }
                 }
             }
+            slots.acquire(MAX_INFLIGHT);
         } catch (SocketException se) {
             log.accept("Connessione interrotta: " + se.getMessage());
         } catch (IOException ioe) {
             log.accept("Errore I/O handler: " + ioe.getMessage());
+        } catch (UncheckedIOException ioe) {
+            log.accept("Connessione interrotta: " + ioe.getCause().getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         } finally {
+            metrics.connectionClosed();
+            admission.closed();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
 
-    private String tryUnb64(String s) {
+    /** Chiude una connessione accettata ma mai servita (server fermato con la connessione in coda). */
+    void discard() {
+        admission.closed();
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    /** Scrive una risposta completa sotto {@code outLock}, senza mescolarla alle altre. */
+    private static void write(Reply out, ReentrantLock outLock, Reply r) {
+        outLock.lock();
         try {
-            // evitiamo IllegalArgumentException se non è Base64
-            byte[] decoded = Base64.getDecoder().decode(s);
-            return new String(decoded, StandardCharsets.UTF_8);
-        } catch (IllegalArgumentException ex) {
-            return s; // non era Base64: usa il plain text
+            for (ByteBuffer b : r.buffers()) out.write(b);
+            out.flush();
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    /** Risponde ERROR;reason al comando senza eseguirlo (server saturo). */
+    void reject(Command c, Reply out, String reason) {
+        if (isTagged(c)) out.tag(c.tag(), !binary);
+        metrics.busy();
+        error(out, reason);
+    }
+
+    /** @return true se il comando porta un tag valido e può essere eseguito in parallelo */
+    static boolean isTagged(Command c) {
+        return c.tag() != null && !c.tag().isEmpty();
+    }
+
+    /** @return true se la connessione è passata al protocollo binario */
+    boolean binary() {
+        return binary;
+    }
+
+    /**
+     * Interpreta un comando (riga testuale o frame binario) e scrive la risposta su {@code out}.
+     * Nel frame oggetto e corpo sono in chiaro, nella riga in Base64.
+     *
+     * @param c   comando ricevuto
+     * @param out destinazione della risposta
+     */
+    void handle(Command c, Reply out) {
+        if (c.isBlank() && c.tag() == null) return;
+
+        String cmd = c.name();
+        if (trace != null) {
+            trace.accept(LOG_PAYLOAD ? "Ricevuto: " + c
+                    : "Ricevuto: [" + (cmd != null ? cmd : "?") + (c.tag() != null ? " #" + c.tag() : "") + "]");
+        }
+
+        if (c.tag() != null) {
+            if (c.tag().isEmpty() || c.size() == 0) { error(out, "BadTag"); return; }
+            out.tag(c.tag(), !binary);
+        }
+
+        if (Protocol.CMD_HELLO.equals(cmd) && !binary) {
+            // cambia la codifica della connessione: non può essere eseguito in parallelo
+            if (out.tag() != null) { error(out, "BadRequest"); return; }
+            handleHello(c, out);
+            return;
         }
+        metrics.request();
+        if (admission.rateLimited() && !allowed(cmd, c)) {
+            metrics.rateLimited();
+            error(out, Admission.RATE_LIMITED);
+            return;
+        }
+        long start = System.nanoTime();
+        switch (cmd == null ? "" : cmd) {
+            case Protocol.CMD_LOGIN -> handleLogin(c, out);
+            case Protocol.CMD_SEND -> handleSend(c, out);
+            case Protocol.CMD_SEND_BATCH -> handleSendBatch(c, out);
+            case Protocol.CMD_GET -> handleGet(c, out, false);
+            case Protocol.CMD_HEADERS -> handleGet(c, out, true);
+            case Protocol.CMD_FETCH -> handleFetch(c, out);
+            case Protocol.CMD_DELETE -> handleDelete(c, out);
+            case Protocol.CMD_WATCH -> handleWatch(c, out);
+            case Protocol.CMD_STATS -> handleStats(out);
+            case Protocol.CMD_SEARCH -> handleSearch(c, out);
+            default -> error(out, "UnknownCommand");
+        }
+        Histogram h = metrics.command(cmd);
+        if (h != null) h.recordSince(start);
+    }
+
+    /**
+     * Limiti di frequenza: SEND/SENDBATCH consumano un gettone per messaggio dal secchio del
+     * mittente e da quello dell'indirizzo, i comandi che leggono messaggi (GET, HEADERS,
+     * FETCH, WATCH, SEARCH) uno da quelli dell'utente e dell'indirizzo. Vale per righe e
+     * frame, con o senza tag: passano tutti da {@link #handle}.
+     */
+    private boolean allowed(String cmd, Command c) {
+        boolean batch = Protocol.CMD_SEND_BATCH.equals(cmd);
+        boolean send = batch || Protocol.CMD_SEND.equals(cmd);
+        if (!send && !reads(cmd)) return true;
+        int field = batch ? 2 : 1;
+        String user = c.has(field) ? c.user(field).trim().toLowerCase(Locale.ROOT) : null;
+        if (!send) return admission.allowGet(user, remote);
+        int n = 1;
+        if (batch) {
+            try { n = Math.max(1, c.intAt(1)); } catch (NumberFormatException ignored) {}
+        }
+        return admission.allowSend(user, remote, n);
+    }
+
+    /** @return true se il comando restituisce messaggi (intestazioni o corpi) */
+    private static boolean reads(String cmd) {
+        return Protocol.CMD_GET.equals(cmd) || Protocol.CMD_HEADERS.equals(cmd) || Protocol.CMD_FETCH.equals(cmd)
+                || Protocol.CMD_WATCH.equals(cmd) || Protocol.CMD_SEARCH.equals(cmd);
+    }
+
+    /**
+     * STATS → STAT;nome;valore per contatori, memoria, latenze (µs) e inbox, poi END.
+     * <p>Per ogni inbox: {@code inbox.utente.messages} e {@code inbox.utente.bytes}
+     * (corpi in Base64 su disco).</p>
+     */
+    private void handleStats(Reply out) {
+        for (Map.Entry<String, String> e : metrics.values().entrySet()) {
+            respond(out, Protocol.RESP_STAT, e.getKey(), e.getValue());
+        }
+        for (MailStore.InboxStats s : store.inboxStats()) {
+            respond(out, Protocol.RESP_STAT, "inbox." + s.user() + ".messages", String.valueOf(s.messages()));
+            respond(out, Protocol.RESP_STAT, "inbox." + s.user() + ".bytes", String.valueOf(s.bytes()));
+        }
+        respond(out, Protocol.RESP_END);
+    }
+
+    /** HELLO;versione → OK;versione e passaggio al protocollo binario, ERROR se non supportata */
+    private void handleHello(Command c, Reply out) {
+        if (!c.is(1, Protocol.BINARY_V1)) { error(out, "UnsupportedVersion"); return; }
+        out.println(Protocol.RESP_OK + ";" + Protocol.BINARY_V1);
+        binary = true;
+        log.accept("Connessione passata al protocollo binario " + Protocol.BINARY_V1);
+    }
+
+    /** Scrive una risposta senza corpo (OK, ERROR, END, MORE) nella codifica della connessione. */
+    private void respond(Reply out, String kind, String... fields) {
+        if (binary) {
+            byte[][] f = new byte[fields.length][];
+            for (int i = 0; i < f.length; i++) f[i] = utf8(fields[i]);
+            writeFrame(out, Protocol.opcode(kind), f);
+        } else {
+            out.println(fields.length == 0 ? kind : kind + ";" + String.join(";", fields));
+        }
+    }
+
+    /**
+     * Scrive un frame di risposta i cui {@code n} campi sono già codificati in {@code parts}
+     * (lunghezza + byte, vedi {@link WireCache}), con il tag della richiesta se presente.
+     */
+    private static void writeFrame(Reply out, byte op, int n, ByteBuffer... parts) {
+        byte[] tag = (out.tag() != null) ? utf8(out.tag()) : null;
+        int len = 1 + 2 + (tag != null ? 4 + tag.length : 0);
+        for (ByteBuffer p : parts) len += p.remaining();
+        ByteBuffer head = ByteBuffer.allocate(4 + 1 + 2 + (tag != null ? 4 + tag.length : 0));
+        head.putInt(len)
+                .put(tag != null ? (byte) (op | Protocol.TAG_FLAG) : op)
+                .putShort((short) (tag != null ? n + 1 : n));
+        if (tag != null) head.putInt(tag.length).put(tag);
+        out.write(head.flip());
+        for (ByteBuffer p : parts) out.write(p);
+    }
+
+    /** Scrive un frame di risposta, con il tag della richiesta se presente. */
+    private static void writeFrame(Reply out, byte op, byte[]... fields) {
+        Frame f;
+        if (out.tag() == null) {
+            f = Frame.ofBytes(op, fields);
+        } else {
+            byte[][] tagged = new byte[fields.length + 1][];
+            tagged[0] = utf8(out.tag());
+            System.arraycopy(fields, 0, tagged, 1, fields.length);
+            f = Frame.ofBytes((byte) (op | Protocol.TAG_FLAG), tagged);
+        }
+        out.write(ByteBuffer.wrap(f.encode()));
+    }
+
+    private void error(Reply out, String... reason) {
+        metrics.error();
+        respond(out, Protocol.RESP_ERROR, reason);
     }
 
     /** LOGIN;email */
-    private void handleLogin(String[] p, PrintWriter out) {
-        if (p.length < 2) { out.println(Protocol.RESP_ERROR + ";BadRequest"); return; }
-        String email = p[1];
-        out.println(store.userExists(email) ? Protocol.RESP_OK : Protocol.RESP_ERROR + ";UserNotFound");
+    private void handleLogin(Command c, Reply out) {
+        if (c.size() < 2) { error(out, "BadRequest"); return; }
+        String email = c.user(1);
+        if (store.open(email)) respond(out, Protocol.RESP_OK);
+        else error(out, "UserNotFound");
     }
 
-    /** SEND;from;toCsv;base64(subject);base64(body) */
-    private void handleSend(String[] p, PrintWriter out) {
-        if (p.length < 5) { out.println(Protocol.RESP_ERROR + ";BadRequest"); return; }
+    /**
+     * SEND;from;toCsv;base64(subject);base64(body)
+     * <p>OK arriva solo a messaggio durevole; se il salvataggio fallisce ERROR;StorageError
+     * (anche per SENDBATCH e DELETE).</p>
+     */
+    private void handleSend(Command c, Reply out) {
+        if (c.size() < 5) { error(out, "BadRequest"); return; }
 
-        String from = p[1];
-        List<String> to = Arrays.stream(p[2].split(","))
-                .map(s -> s.trim().toLowerCase(Locale.ROOT))
-                .filter(s -> !s.isEmpty())
-                .toList();
+        String from = c.user(1);
+        if (!sender(from)) { error(out, "BadRequest"); return; }
+        List<String> to = new ArrayList<>();
+        c.recipients(2, to);
 
         // Valida destinatari
         for (String r : to) {
             if (!store.userExists(r)) {
-                out.println(Protocol.RESP_ERROR + ";InvalidRecipient;" + r);
+                error(out, "InvalidRecipient", r);
                 return;
             }
         }
 
-        String subject = tryUnb64(p[3]);
-        String body    = tryUnb64(p[4]);
+        // Consegna: un solo messaggio condiviso dalle inbox di tutti i destinatari
+        Email e = newEmail(from, to, c.text(3), c.text(4));
+        try { store.addEmail(e); }
+        catch (UncheckedIOException notDurable) { error(out, "StorageError"); return; }
+        encode(e);
 
-        // Consegna (copia singola in inbox del destinatario)
-        for (String r : to) {
-            Email email = new Email(
-                    store.getNextEmailId(),
-                    from,
-                    List.of(r),
-                    subject,
-                    body,
-                    LocalDateTime.now()
-            );
-            store.addEmail(r, email);
+        respond(out, Protocol.RESP_OK);
+        if (trace != null) trace.accept("SEND da " + from + " a " + String.join(",", to));
+    }
+
+    /**
+     * SENDBATCH;n;from;toCsv;base64(subject);base64(body);... con n gruppi di quattro campi.
+     * <p>I messaggi sono consegnati insieme (un solo salvataggio): se un destinatario
+     * non esiste non ne viene consegnato nessuno.</p>
+     */
+    private void handleSendBatch(Command c, Reply out) {
+        int n;
+        try { n = c.intAt(1); }
+        catch (NumberFormatException e) { error(out, "BadRequest"); return; }
+        if (n <= 0 || c.size() != 2 + 4 * n) { error(out, "BadRequest"); return; }
+
+        List<List<String>> rcpts = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (!sender(c.str(2 + 4 * i))) { error(out, "BadRequest"); return; }
+            List<String> to = new ArrayList<>();
+            c.recipients(3 + 4 * i, to);
+            for (String r : to) {
+                if (!store.userExists(r)) {
+                    error(out, "InvalidRecipient", r);
+                    return;
+                }
+            }
+            rcpts.add(to);
         }
+        List<Email> batch = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int f = 2 + 4 * i;
+            batch.add(newEmail(c.str(f), rcpts.get(i), c.text(f + 2), c.text(f + 3)));
+        }
+        try { store.addEmails(batch); }
+        catch (UncheckedIOException notDurable) { error(out, "StorageError"); return; }
+        for (Email e : batch) encode(e);
+
+        respond(out, Protocol.RESP_OK, String.valueOf(n));
+        if (trace != null) trace.accept("SENDBATCH di " + n + " messaggi");
+    }
+
+    /**
+     * Il mittente finisce così com'è nel journal e nelle righe MSG/HDR: deve essere un
+     * account esistente, senza separatori né caratteri di controllo (nei frame binari i
+     * campi arrivano senza alcuna codifica).
+     */
+    private boolean sender(String from) {
+        for (int i = 0; i < from.length(); i++) {
+            char ch = from.charAt(i);
+            if (ch < ' ' || ch == 0x7f || ch == ';' || ch == ',') return false;
+        }
+        return store.userExists(from);
+    }
+
+    /**
+     * Codifica subito il messaggio consegnato nel {@link WireCache}, nella forma usata da
+     * questa connessione: le sincronizzazioni dei destinatari troveranno i byte pronti.
+     */
+    private void encode(Email e) {
+        if (binary) wire.binary(e); else wire.text(e);
+    }
 
-        out.println(Protocol.RESP_OK);
-        log.accept("SEND da " + from + " a " + String.join(",", to));
+    /** Nuova email con id assegnato. */
+    private Email newEmail(String from, List<String> to, String subject, String body) {
+        return new Email(store.getNextEmailId(), from, to, subject, body, LocalDateTime.now());
     }
 
-    /** GET;user;lastId  → stream di: MSG;id;from;toCsv;base64(subject);base64(body);epochSeconds ... poi END */
-    private void handleGet(String[] p, PrintWriter out) {
-        if (p.length < 3) { out.println(Protocol.RESP_ERROR + ";BadRequest"); return; }
+    /**
+     * GET;user;lastId[;limit]  → stream di: MSG;id;from;toCsv;base64(subject);base64(body);epochSeconds ...
+     * <p>I messaggi vanno dall'iteratore dello store al socket senza liste intermedie,
+     * al massimo {@link Protocol#GET_MAX_PAGE} per risposta. Con {@code limit} la pagina
+     * termina con MORE;cursor se restano altri messaggi (si riparte con lastId = cursor),
+     * altrimenti con END. Senza limit termina sempre con END: i client storici recuperano
+     * il resto al poll successivo.</p>
+     * <p>HEADERS;user;lastId[;limit] ha la stessa paginazione ma invia solo le intestazioni:
+     * HDR;id;from;toCsv;base64(subject);epochSeconds (il corpo si chiede con FETCH).</p>
+     */
+    private void handleGet(Command c, Reply out, boolean headersOnly) {
+        if (c.size() < 3) { error(out, "BadRequest"); return; }
 
-        String user = p[1];
+        String user = c.user(1);
         int lastId;
-        try { lastId = Integer.parseInt(p[2]); }
-        catch (NumberFormatException e) { out.println(Protocol.RESP_ERROR + ";InvalidId"); return; }
-
-        if (!store.userExists(user)) { out.println(Protocol.RESP_ERROR + ";UserNotFound"); return; }
-
-        List<Email> list = store.getEmailsAfter(user, lastId);
-        for (Email e : list) {
-            String toCsv = e.getTo().stream().collect(Collectors.joining(","));
-            long epoch = e.getSentAt().toEpochSecond(ZoneOffset.UTC);
-            out.println(String.join(";",
-                    "MSG",
-                    String.valueOf(e.getId()),
-                    e.getFrom(),
-                    toCsv,
-                    Wire.b64(e.getSubject()),
-                    Wire.b64(e.getBody()),
-                    String.valueOf(epoch)
-            ));
-        }
-        out.println("END");
-        log.accept("GET per " + user + " -> " + list.size() + " nuovi");
-    }
-
-    /** DELETE;user;msgId */
-    private void handleDelete(String[] p, PrintWriter out) {
-        if (p.length < 3) { out.println(Protocol.RESP_ERROR + ";BadRequest"); return; }
-
-        String user = p[1];
+        try { lastId = c.intAt(2); }
+        catch (NumberFormatException e) { error(out, "InvalidId"); return; }
+
+        boolean paged = c.has(3);
+        int limit = Protocol.GET_MAX_PAGE;
+        if (paged) {
+            try { limit = Math.min(c.intAt(3), Protocol.GET_MAX_PAGE); }
+            catch (NumberFormatException e) { error(out, "BadRequest"); return; }
+            if (limit <= 0) { error(out, "BadRequest"); return; }
+        }
+
+        if (!store.userExists(user)) { error(out, "UserNotFound"); return; }
+
+        Iterator<Email> it = store.emailsAfter(user, lastId);
+        int cursor = streamMsgs(it, limit, lastId, headersOnly, out);
+        if (paged && it.hasNext()) respond(out, Protocol.RESP_MORE, String.valueOf(cursor));
+        else respond(out, Protocol.RESP_END);
+        if (trace != null) trace.accept((headersOnly ? "HEADERS" : "GET") + " per " + user + " -> " + (cursor > lastId ? "fino a id=" + cursor : "nessun nuovo"));
+    }
+
+    /**
+     * Scrive al massimo {@code limit} messaggi presi dall'iteratore.
+     *
+     * @return id dell'ultimo messaggio scritto ({@code lastId} se nessuno)
+     */
+    private int streamMsgs(Iterator<Email> it, int limit, int lastId, boolean headersOnly, Reply out) {
+        int cursor = lastId;
+        for (int n = 0; n < limit && it.hasNext(); n++) {
+            Email e = it.next();
+            if (headersOnly) writeHdr(e, out); else writeMsg(e, out);
+            cursor = e.getId();
+        }
+        return cursor;
+    }
+
+    /**
+     * SEARCH;user;base64(query)[;lastId[;limit]] → HDR dei messaggi con id > lastId che
+     * contengono tutte le parole della query (in oggetto, corpo o mittente, senza distinguere
+     * maiuscole; {@code parola*} per prefisso), in ordine di id e paginati come HEADERS.
+     * La query è in chiaro nel frame binario.
+     */
+    private void handleSearch(Command c, Reply out) {
+        if (c.size() < 3) { error(out, "BadRequest"); return; }
+
+        String user = c.user(1);
+        String query = c.text(2);
+        int lastId = 0;
+        try { if (c.has(3)) lastId = c.intAt(3); }
+        catch (NumberFormatException e) { error(out, "InvalidId"); return; }
+
+        boolean paged = c.has(4);
+        int limit = Protocol.GET_MAX_PAGE;
+        if (paged) {
+            try { limit = Math.min(c.intAt(4), Protocol.GET_MAX_PAGE); }
+            catch (NumberFormatException e) { error(out, "BadRequest"); return; }
+            if (limit <= 0) { error(out, "BadRequest"); return; }
+        }
+        if (query.isBlank()) { error(out, "BadRequest"); return; }
+
+        if (!store.userExists(user)) { error(out, "UserNotFound"); return; }
+
+        Iterator<Email> it = store.search(user, query, lastId);
+        int cursor = streamMsgs(it, limit, lastId, true, out);
+        if (paged && it.hasNext()) respond(out, Protocol.RESP_MORE, String.valueOf(cursor));
+        else respond(out, Protocol.RESP_END);
+        if (trace != null) trace.accept("SEARCH per " + user + " -> " + (cursor > lastId ? "fino a id=" + cursor : "nessun risultato"));
+    }
+
+    /** FETCH;user;id → MSG;... del singolo messaggio, oppure ERROR;MessageNotFound */
+    private void handleFetch(Command c, Reply out) {
+        if (c.size() < 3) { error(out, "BadRequest"); return; }
+
+        String user = c.user(1);
         int msgId;
-        try { msgId = Integer.parseInt(p[2]); }
-        catch (NumberFormatException e) { out.println(Protocol.RESP_ERROR + ";InvalidId"); return; }
+        try { msgId = c.intAt(2); }
+        catch (NumberFormatException e) { error(out, "InvalidId"); return; }
 
-        if (!store.userExists(user)) { out.println(Protocol.RESP_ERROR + ";UserNotFound"); return; }
+        if (!store.userExists(user)) { error(out, "UserNotFound"); return; }
+
+        Email e = store.getEmail(user, msgId);
+        if (e == null) { error(out, "MessageNotFound"); return; }
+        writeMsg(e, out);
+        if (trace != null) trace.accept("FETCH id=" + msgId + " per " + user);
+    }
+
+    /**
+     * WATCH;user;lastId[;timeoutMs] → come GET, ma se non ci sono messaggi nuovi
+     * tiene la connessione finché ne arriva uno o scade il timeout (poi END vuoto).
+     */
+    private void handleWatch(Command c, Reply out) {
+        if (c.size() < 3) { error(out, "BadRequest"); return; }
+
+        String user = c.user(1);
+        int lastId;
+        long timeout;
+        try {
+            lastId = c.intAt(2);
+            timeout = c.has(3) ? c.longAt(3) : Protocol.WATCH_DEFAULT_MS;
+        } catch (NumberFormatException e) { error(out, "InvalidId"); return; }
+        timeout = Math.max(0, Math.min(timeout, Protocol.WATCH_MAX_MS));
+
+        if (!store.userExists(user)) { error(out, "UserNotFound"); return; }
+
+        Iterator<Email> it;
+        try {
+            it = store.awaitEmailsAfter(user, lastId, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            it = Collections.emptyIterator();
+        }
+        int cursor = streamMsgs(it, Protocol.GET_MAX_PAGE, lastId, false, out);
+        respond(out, Protocol.RESP_END);
+        if (trace != null) trace.accept("WATCH per " + user + " -> " + (cursor > lastId ? "fino a id=" + cursor : "nessun nuovo"));
+    }
+
+    /**
+     * MSG;id;from;toCsv;base64(subject);base64(body);epochSeconds
+     * <p>Le parti fisse vengono dal {@link WireCache}. Il corpo è già in Base64 nel BodyStore:
+     * nel protocollo testuale i suoi byte passano dalla mappatura alla risposta senza
+     * decodifica né {@code String} intermedie; nel binario è decodificato una volta e
+     * tenuto in cache, tranne i corpi grandi, decodificati a ogni invio.</p>
+     */
+    private void writeMsg(Email e, Reply out) {
+        if (binary) {
+            WireCache.Binary b = wire.binary(e);
+            writeFrame(out, Protocol.OP_MSG, 6, b.head, wire.body(e, store.bodyBytes(e)), b.tail);
+            return;
+        }
+        WireCache.Text t = wire.text(e);
+        out.write(t.msgHead);
+        out.write(store.bodyBytes(e));
+        out.writeLine(t.msgTail);
+    }
+
+    /** HDR;id;from;toCsv;base64(subject);epochSeconds */
+    private void writeHdr(Email e, Reply out) {
+        if (binary) {
+            WireCache.Binary b = wire.binary(e);
+            writeFrame(out, Protocol.OP_HDR, 5, b.head, b.tail);
+            return;
+        }
+        out.writeLine(wire.text(e).hdrLine);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * DELETE;user;msgId → OK oppure ERROR;MessageNotFound
+     * <p>DELETE;user;idSpec con una lista di id e intervalli (es. {@code 3,8,10-200})
+     * cancella tutto con un solo salvataggio e risponde OK;cancellati (gli id assenti
+     * sono ignorati).</p>
+     */
+    private void handleDelete(Command c, Reply out) {
+        if (c.size() < 3) { error(out, "BadRequest"); return; }
+
+        String user = c.user(1);
+        int msgId = 0;
+        boolean single = true;
+        try { msgId = c.intAt(2); }
+        catch (NumberFormatException e) { single = false; }
+
+        if (single) {
+            if (!store.userExists(user)) { error(out, "UserNotFound"); return; }
+
+            boolean ok;
+            try { ok = store.deleteEmail(user, msgId); }
+            catch (UncheckedIOException notDurable) { error(out, "StorageError"); return; }
+            if (ok) respond(out, Protocol.RESP_OK);
+            else error(out, "MessageNotFound");
+            if (ok && trace != null) trace.accept("DELETE id=" + msgId + " per " + user);
+            return;
+        }
+        if (!c.contains(2, ',') && !c.contains(2, '-')) { error(out, "InvalidId"); return; }
+
+        if (!store.userExists(user)) { error(out, "UserNotFound"); return; }
+
+        List<Integer> ids = new ArrayList<>();
+        try {
+            for (String part : c.str(2).split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) continue;
+                int dash = part.indexOf('-', 1);
+                if (dash < 0) { ids.add(Integer.parseInt(part)); continue; }
+                int from = Integer.parseInt(part.substring(0, dash).trim());
+                int to = Integer.parseInt(part.substring(dash + 1).trim());
+                // solo gli id presenti nella inbox, non tutto l'intervallo numerico
+                Iterator<Email> it = store.emailsAfter(user, from - 1);
+                while (it.hasNext()) {
+                    int id = it.next().getId();
+                    if (id > to) break;
+                    ids.add(id);
+                }
+            }
+        } catch (NumberFormatException e) { error(out, "InvalidId"); return; }
 
-        boolean ok = store.deleteEmail(user, msgId);
-        out.println(ok ? Protocol.RESP_OK : Protocol.RESP_ERROR + ";MessageNotFound");
-        if (ok) log.accept("DELETE id=" + msgId + " per " + user);
+        int n;
+        try { n = store.deleteEmails(user, ids); }
+        catch (UncheckedIOException notDurable) { error(out, "StorageError"); return; }
+        respond(out, Protocol.RESP_OK, String.valueOf(n));
+        if (trace != null) trace.accept("DELETE di " + n + " messaggi per " + user);
     }
 }
@@ -7,10 +7,17 @@ import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
@@ -19,17 +26,46 @@ import java.util.function.Consumer;
  * Accetta connessioni client su una porta TCP, delega le richieste a
  * {@link RequestHandler} e gestisce ciclo di vita (start/stop).
  * </p>
+ * <p>La modalità di esecuzione ({@link Mode}) si sceglie all'avvio con
+ * {@code -Dmailserver.mode=threads|virtual|nio}; i limiti di carico ({@link Limits})
+ * con le proprietà {@code mailserver.maxConnections}, {@code .workers}, {@code .queue},
+ * {@code .maxInFlight}, {@code .idleTimeoutMs} e {@code .rate.*}.</p>
  */
 public class ServerCore {
 
+    /** Modalità di gestione delle connessioni. */
+    public enum Mode {
+        /** Un thread del pool per ogni connessione, I/O bloccante. */
+        THREADS,
+        /** Un virtual thread per ogni connessione, I/O bloccante. */
+        VIRTUAL,
+        /** Event loop non bloccanti ({@link NioServer}), thread solo per le richieste attive. */
+        NIO;
+
+        static final String PROP = "mailserver.mode";
+
+        /** @return modalità configurata, {@link #THREADS} se assente o non valida */
+        public static Mode fromProperty() {
+            String v = System.getProperty(PROP, THREADS.name());
+            try {
+                return valueOf(v.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return THREADS;
+            }
+        }
+    }
+
     private final int port;
     private final MailStore store;
     private final Consumer<String> log;
+    private final Mode mode;
+    private final Admission admission;
 
     private volatile boolean running = false;
     private Thread acceptorThread;
     private ServerSocket serverSocket;
     private ExecutorService pool;
+    private NioServer nio;
 
     /**
      * @param port  porta TCP di ascolto
@@ -37,9 +73,32 @@ public class ServerCore {
      * @param log   callback per log eventi
      */
     public ServerCore(int port, MailStore store, Consumer<String> log) {
+        this(port, store, log, Mode.fromProperty());
+    }
+
+    /**
+     * @param port  porta TCP di ascolto
+     * @param store archivio dati condiviso
+     * @param log   callback per log eventi
+     * @param mode  modalità di gestione delle connessioni
+     */
+    public ServerCore(int port, MailStore store, Consumer<String> log, Mode mode) {
+        this(port, store, log, mode, Limits.fromProperties());
+    }
+
+    /**
+     * @param port   porta TCP di ascolto
+     * @param store  archivio dati condiviso
+     * @param log    callback per log eventi
+     * @param mode   modalità di gestione delle connessioni
+     * @param limits limiti di carico ({@link Limits#UNLIMITED} per nessuno)
+     */
+    public ServerCore(int port, MailStore store, Consumer<String> log, Mode mode, Limits limits) {
         this.port = port;
         this.store = Objects.requireNonNull(store);
         this.log = Objects.requireNonNull(log);
+        this.mode = Objects.requireNonNull(mode);
+        this.admission = new Admission(Objects.requireNonNull(limits));
     }
 
     /** Avvia il server se non già attivo. */
@@ -47,24 +106,36 @@ public class ServerCore {
         if (running) return;
         running = true;
 
+        if (mode == Mode.NIO) {
+            startNio();
+            return;
+        }
+
         if (pool == null || pool.isShutdown() || pool.isTerminated()) {
-            ThreadFactory tf = r -> {
-                Thread t = new Thread(r, "server-worker");
-                t.setDaemon(true);
-                return t;
-            };
-            pool = Executors.newCachedThreadPool(tf);
+            pool = (mode == Mode.VIRTUAL)
+                    ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("server-vworker-", 0).factory())
+                    : workerPool(admission.limits);
         }
 
         acceptorThread = new Thread(() -> {
             try (ServerSocket ss = new ServerSocket(port)) {
                 serverSocket = ss;
-                log.accept("Server in ascolto su porta " + port); 
+                log.accept("Server (" + mode + ") in ascolto su porta " + port);
                 while (running) {
                     try {
                         Socket client = ss.accept();
+                        if (!admission.tryOpen()) {
+                            admission.reject(client);
+                            continue;
+                        }
                         log.accept("🔌 Connessione da " + client.getRemoteSocketAddress());
-                        pool.submit(new RequestHandler(client, store, log));
+                        try {
+                            pool.execute(new RequestHandler(client, store, log, admission,
+                                    client.getInetAddress().getHostAddress()));
+                        } catch (RejectedExecutionException full) {
+                            admission.closed();
+                            admission.reject(client);
+                        }
                     } catch (SocketException se) {
                         if (running) log.accept("⚠️ Errore socket: " + se.getMessage());
                         break;
@@ -85,13 +156,68 @@ public class ServerCore {
         acceptorThread.start();
     }
 
+    /**
+     * Avvia il front end NIO: pochi event loop per l'I/O, un virtual thread per comando
+     * (WATCH e l'attesa del group commit sospendono il comando senza occupare thread).
+     */
+    private void startNio() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        pool = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-worker-", 0).factory());
+        nio = new NioServer(port, store, log, Math.max(1, cores / 2), pool, admission);
+        try {
+            nio.start();
+        } catch (BindException be) {
+            log.accept("Porta " + port + " occupata: " + be.getMessage());
+            nio.stop();
+            nio = null;
+            running = false;
+        } catch (IOException ioe) {
+            log.accept("Errore server: " + ioe.getMessage());
+            nio.stop();
+            nio = null;
+            running = false;
+        }
+    }
+
+    /**
+     * Pool della modalità THREADS: {@code workers} thread (uno per connessione) e una coda
+     * limitata di connessioni in attesa; a coda piena l'accettazione risponde ERROR;Busy.
+     * Senza limite di thread resta il pool illimitato.
+     */
+    private static ExecutorService workerPool(Limits limits) {
+        if (limits.workers() <= 0) return Executors.newCachedThreadPool(daemonFactory("server-worker"));
+        BlockingQueue<Runnable> queue = limits.queue() > 0
+                ? new ArrayBlockingQueue<>(limits.queue()) : new SynchronousQueue<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(limits.workers(), limits.workers(),
+                60, TimeUnit.SECONDS, queue, daemonFactory("server-worker"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
     /** Ferma il server e libera le risorse. */
     public synchronized void stop() {
         running = false;
+        if (nio != null) {
+            nio.stop();
+            nio = null;
+        }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
         } catch (IOException ignored) {}
-        if (pool != null) pool.shutdownNow();
+        if (pool != null) {
+            // connessioni ancora in coda: mai servite, vanno chiuse qui
+            for (Runnable r : pool.shutdownNow()) {
+                if (r instanceof RequestHandler h) h.discard();
+            }
+        }
         if (acceptorThread != null && acceptorThread.isAlive()) {
             try { acceptorThread.join(1500); } catch (InterruptedException ignored) {}
         }
@@ -0,0 +1,243 @@
+package it.unito.prog3.mailserver.net;
+
+import shared.Email;
+import shared.Protocol;
+import shared.Wire;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rappresentazione già codificata dei messaggi, condivisa da tutte le connessioni.
+ * <p>Un messaggio archiviato non cambia più: le parti di MSG e HDR che non dipendono
+ * dalla richiesta (id, mittente, destinatari, oggetto, data) vengono codificate una
+ * volta, alla consegna o al primo invio, e poi scritte così come sono. Il corpo
+ * testuale resta nel BodyStore (già in Base64); quello binario, decodificato, è
+ * tenuto solo se non supera {@link #MAX_BODY_BYTES}: i corpi grandi si decodificano
+ * a ogni invio invece di occupare il budget.</p>
+ * <p>La memoria occupata è limitata da {@code -Dmailserver.wireCacheMb} (default 64):
+ * oltre il limite le voci non usate dall'ultimo passaggio vengono scartate
+ * (algoritmo della seconda possibilità), senza lock sul percorso di lettura.</p>
+ * <p>I buffer restituiti sono condivisi: vanno letti tramite {@code duplicate()}
+ * (come fa {@link Reply#write}) e mai modificati.</p>
+ */
+final class WireCache {
+
+    static final String PROP_BUDGET = "mailserver.wireCacheMb";
+    /** Corpo binario più grande tenuto in cache: oltre si decodifica a ogni invio. */
+    static final int MAX_BODY_BYTES = 64 * 1024;
+    /** Costo stimato di una voce oltre ai byte codificati. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static WireCache instance;
+
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final long budget;
+
+    WireCache(long budgetBytes) {
+        this.budget = budgetBytes;
+    }
+
+    /** Cache globale, dimensionata da {@link #PROP_BUDGET}. */
+    static synchronized WireCache getInstance() {
+        if (instance == null) instance = new WireCache(Long.getLong(PROP_BUDGET, 64L) * 1024 * 1024);
+        return instance;
+    }
+
+    /** Forma testuale: {@code MSG;id;from;toCsv;subj64;}, {@code ;epoch\n} e la riga HDR completa. */
+    static final class Text {
+        final ByteBuffer msgHead;
+        final ByteBuffer msgTail;
+        final ByteBuffer hdrLine;
+
+        private Text(Email e) {
+            String common = e.getId() + ";" + e.getFrom() + ";" + String.join(",", e.getTo())
+                    + ";" + Wire.b64(e.getSubject()) + ";";
+            String epoch = String.valueOf(e.getSentAt().toEpochSecond(ZoneOffset.UTC));
+            msgHead = wrap(Protocol.RESP_MSG + ";" + common);
+            msgTail = wrap(";" + epoch + "\n");
+            hdrLine = wrap(Protocol.RESP_HDR + ";" + common + epoch + "\n");
+        }
+
+        private int size() {
+            return msgHead.capacity() + msgTail.capacity() + hdrLine.capacity();
+        }
+    }
+
+    /**
+     * Forma binaria: campi già codificati (lunghezza + byte) di un frame MSG senza
+     * intestazione. HDR ha gli stessi campi senza il corpo: {@code head} + {@code tail}.
+     */
+    static final class Binary {
+        /** id, mittente, destinatari, oggetto. */
+        final ByteBuffer head;
+        /** Data in secondi. */
+        final ByteBuffer tail;
+
+        private Binary(Email e) {
+            head = fields(String.valueOf(e.getId()), e.getFrom(), String.join(",", e.getTo()), e.getSubject());
+            tail = fields(String.valueOf(e.getSentAt().toEpochSecond(ZoneOffset.UTC)));
+        }
+
+        private int size() {
+            return head.capacity() + tail.capacity();
+        }
+    }
+
+    private static final class Entry {
+        volatile Text text;
+        volatile Binary binary;
+        /** Campo del corpo in chiaro (forma binaria), solo se piccolo. */
+        volatile ByteBuffer body;
+        volatile boolean used = true;
+        /** Byte contati in {@link #bytes} per questa voce. Sotto il lock della voce. */
+        long weight;
+        /** true se la voce è stata scartata: i byte aggiunti dopo non si contano. */
+        boolean evicted;
+    }
+
+    /** @return forma testuale del messaggio, codificata al primo uso */
+    Text text(Email e) {
+        Entry en = entry(e.getId());
+        Text t = en.text;
+        if (t != null) return t;
+        synchronized (en) {
+            if (en.text != null) return en.text;
+            t = new Text(e);
+            en.text = t;
+            charge(en, t.size());
+        }
+        trim();
+        return t;
+    }
+
+    /** @return forma binaria del messaggio, codificata al primo uso */
+    Binary binary(Email e) {
+        Entry en = entry(e.getId());
+        Binary b = en.binary;
+        if (b != null) return b;
+        synchronized (en) {
+            if (en.binary != null) return en.binary;
+            b = new Binary(e);
+            en.binary = b;
+            charge(en, b.size());
+        }
+        trim();
+        return b;
+    }
+
+    /**
+     * @param body64 corpo in Base64 come memorizzato
+     * @return campo binario del corpo in chiaro: dalla cache se già decodificato,
+     *         altrimenti decodificato ora e tenuto se non supera {@link #MAX_BODY_BYTES}
+     */
+    ByteBuffer body(Email e, ByteBuffer body64) {
+        Entry en = entry(e.getId());
+        ByteBuffer f = en.body;
+        if (f != null) return f;
+        f = field(Base64.getDecoder().decode(body64.duplicate()));
+        if (f.capacity() - 4 > MAX_BODY_BYTES) return f;
+        synchronized (en) {
+            if (en.body != null) return en.body;
+            en.body = f;
+            charge(en, f.capacity());
+        }
+        trim();
+        return f;
+    }
+
+    /** @return byte stimati in cache */
+    long size() {
+        return bytes.get();
+    }
+
+    private Entry entry(int id) {
+        Entry en = entries.get(id);
+        if (en == null) {
+            Entry fresh = new Entry();
+            en = entries.putIfAbsent(id, fresh);
+            if (en == null) {
+                en = fresh;
+                synchronized (en) {
+                    charge(en, ENTRY_OVERHEAD);
+                }
+                trim();
+            }
+        }
+        en.used = true;
+        return en;
+    }
+
+    /**
+     * Conta {@code n} byte per la voce, se è ancora in cache: una voce scartata nel frattempo
+     * ha già restituito il suo peso. Sotto il lock della voce.
+     */
+    private void charge(Entry en, int n) {
+        if (en.evicted) return;
+        en.weight += n;
+        bytes.addAndGet(n);
+    }
+
+    /** Superato il budget, libera spazio. */
+    private void trim() {
+        if (bytes.get() > budget) evict();
+    }
+
+    /**
+     * Seconda possibilità: le voci usate dall'ultimo passaggio perdono il segno, le altre
+     * escono. Si ferma sotto i tre quarti del budget; un solo thread alla volta.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            long target = budget - budget / 4;
+            for (int round = 0; round < 2 && bytes.get() > target; round++) {
+                Iterator<Entry> it = entries.values().iterator();
+                while (it.hasNext() && bytes.get() > target) {
+                    Entry en = it.next();
+                    if (en.used) {
+                        en.used = false;
+                        continue;
+                    }
+                    synchronized (en) {
+                        it.remove();
+                        en.evicted = true;
+                        bytes.addAndGet(-en.weight);
+                    }
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static ByteBuffer wrap(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer fields(String... values) {
+        byte[][] f = new byte[values.length][];
+        int len = 0;
+        for (int i = 0; i < f.length; i++) {
+            f[i] = values[i].getBytes(StandardCharsets.UTF_8);
+            len += 4 + f[i].length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(len);
+        for (byte[] v : f) b.putInt(v.length).put(v);
+        return b.flip();
+    }
+
+    private static ByteBuffer field(ByteBuffer raw) {
+        ByteBuffer b = ByteBuffer.allocate(4 + raw.remaining());
+        b.putInt(raw.remaining()).put(raw.duplicate());
+        return b.flip();
+    }
+}
@@ -0,0 +1,101 @@
+package it.unito.prog3.mailserver.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Istogramma di durate a bucket log-lineari, nello stile di HdrHistogram.
+ * <p>Ogni potenza di 2 è divisa in {@value #SUB_BUCKETS} bucket uguali: l'errore
+ * relativo di un percentile è al massimo 1/32 (3,125%) da 1 ns a circa 18 minuti (oltre
+ * si satura). La registrazione è un incremento atomico senza lock né allocazioni; la
+ * lettura ({@link #snapshot()}) non ferma chi scrive e può quindi essere leggermente
+ * disallineata tra conteggio e bucket.</p>
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Valore massimo distinto (nanosecondi): oltre si registra qui. */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Registra una durata in nanosecondi. */
+    public void record(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts.incrementAndGet(index(v));
+        total.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /** Registra il tempo trascorso da {@code startNanos} ({@link System#nanoTime()}). */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Riepilogo in microsecondi.
+     *
+     * @param count numero di campioni
+     * @param mean  media
+     * @param p50   mediana
+     * @param p90   90° percentile
+     * @param p99   99° percentile
+     * @param p999  99,9° percentile
+     * @param max   massimo registrato
+     */
+    public record Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {}
+
+    /** @return riepilogo corrente (tutti zero se vuoto) */
+    public Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+            n += c[i];
+        }
+        if (n == 0) return new Snapshot(0, 0, 0, 0, 0, 0, 0);
+        long top = max.get();
+        return new Snapshot(n,
+                sum.sum() / Math.max(1, total.sum()) / 1000,
+                percentile(c, n, 0.50, top) / 1000,
+                percentile(c, n, 0.90, top) / 1000,
+                percentile(c, n, 0.99, top) / 1000,
+                percentile(c, n, 0.999, top) / 1000,
+                top / 1000);
+    }
+
+    /**
+     * Valore (ns) sotto cui cade la frazione {@code q} dei campioni: estremo alto del bucket,
+     * ma mai oltre il massimo registrato.
+     */
+    private static long percentile(long[] c, long n, double q, long top) {
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0; i < c.length; i++) {
+            seen += c[i];
+            if (seen >= rank) return Math.min(upper(i), top);
+        }
+        return top;
+    }
+
+    static int index(long v) {
+        if (v < SUB_BUCKETS) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (v >>> shift) - SUB_BUCKETS;
+    }
+
+    /** @return valore più alto che cade nel bucket {@code i} */
+    static long upper(int i) {
+        if (i < SUB_BUCKETS) return i;
+        int shift = (i - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = SUB_BUCKETS + (i - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,170 @@
+package it.unito.prog3.mailserver.stats;
+
+import shared.Protocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contatori e istogrammi del server, condivisi da rete, archivio e GUI.
+ * <p>Tutto è registrabile da più thread senza lock: gli istogrammi per comando sono
+ * creati all'avvio, quindi sul percorso di una richiesta c'è solo una ricerca in mappa
+ * e qualche incremento atomico. I valori sono esposti dal comando {@code STATS} e
+ * letti periodicamente dalla dashboard.</p>
+ */
+public final class Metrics {
+
+    private static final String[] COMMANDS = {
+            Protocol.CMD_LOGIN, Protocol.CMD_SEND, Protocol.CMD_SEND_BATCH, Protocol.CMD_GET,
+            Protocol.CMD_HEADERS, Protocol.CMD_FETCH, Protocol.CMD_DELETE, Protocol.CMD_WATCH,
+            Protocol.CMD_STATS, Protocol.CMD_SEARCH
+    };
+
+    private static Metrics instance;
+
+    private final Map<String, Histogram> commands = new LinkedHashMap<>();
+    /** Durata di scrittura + fsync di un batch del journal. */
+    private final Histogram fsync = new Histogram();
+    /** Durata della riscrittura dello snapshot (compattazione). */
+    private final Histogram save = new Histogram();
+    /** Durata del caricamento da disco di una inbox non residente. */
+    private final Histogram inboxLoad = new Histogram();
+    /** Durata del caricamento (o della ricostruzione) dell'indice di ricerca di una inbox. */
+    private final Histogram indexLoad = new Histogram();
+    /** Inbox tolte dalla memoria e stima dei byte di heap di quelle residenti. */
+    private final LongAdder evicted = new LongAdder();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    /** Connessioni e comandi respinti con ERROR;Busy. */
+    private final LongAdder busy = new LongAdder();
+    /** Richieste respinte con ERROR;RateLimited. */
+    private final LongAdder limited = new LongAdder();
+    private final long startMillis = System.currentTimeMillis();
+
+    private Metrics() {
+        for (String c : COMMANDS) commands.put(c, new Histogram());
+    }
+
+    /** Istanza globale. */
+    public static synchronized Metrics getInstance() {
+        if (instance == null) instance = new Metrics();
+        return instance;
+    }
+
+    /** @return istogramma del comando, {@code null} se sconosciuto */
+    public Histogram command(String name) {
+        return (name == null) ? null : commands.get(name);
+    }
+
+    public Histogram fsync() {
+        return fsync;
+    }
+
+    public Histogram save() {
+        return save;
+    }
+
+    public Histogram inboxLoad() {
+        return inboxLoad;
+    }
+
+    public Histogram indexLoad() {
+        return indexLoad;
+    }
+
+    /** Variazione della stima di heap delle inbox residenti. */
+    public void resident(long delta) {
+        residentBytes.addAndGet(delta);
+    }
+
+    /** Conta una inbox tolta dalla memoria. */
+    public void evicted() {
+        evicted.increment();
+    }
+
+    /** Una connessione è stata aperta. */
+    public void connectionOpened() {
+        connections.incrementAndGet();
+        accepted.increment();
+    }
+
+    /** Una connessione è stata chiusa. */
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /** Conta una richiesta ricevuta. */
+    public void request() {
+        requests.increment();
+    }
+
+    /** Conta una risposta ERROR. */
+    public void error() {
+        errors.increment();
+    }
+
+    /** Conta una connessione o un comando respinto perché il server è saturo. */
+    public void busy() {
+        busy.increment();
+    }
+
+    /** Conta una richiesta respinta per il limite di frequenza. */
+    public void rateLimited() {
+        limited.increment();
+    }
+
+    /** @return connessioni aperte in questo momento */
+    public int connections() {
+        return connections.get();
+    }
+
+    /** @return richieste ricevute dall'avvio */
+    public long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * Valori correnti come coppie nome → valore, in ordine stabile: contatori,
+     * memoria e, per ogni istogramma con campioni, {@code lat.NOME.count|mean_us|p50_us|...}.
+     */
+    public Map<String, String> values() {
+        Map<String, String> v = new LinkedHashMap<>();
+        Runtime rt = Runtime.getRuntime();
+        v.put("uptime_s", String.valueOf((System.currentTimeMillis() - startMillis) / 1000));
+        v.put("connections", String.valueOf(connections.get()));
+        v.put("connections_total", String.valueOf(accepted.sum()));
+        v.put("requests", String.valueOf(requests.sum()));
+        v.put("errors", String.valueOf(errors.sum()));
+        v.put("rejected_busy", String.valueOf(busy.sum()));
+        v.put("rate_limited", String.valueOf(limited.sum()));
+        v.put("heap_used", String.valueOf(rt.totalMemory() - rt.freeMemory()));
+        v.put("heap_max", String.valueOf(rt.maxMemory()));
+        v.put("inbox_resident_bytes", String.valueOf(residentBytes.get()));
+        v.put("inbox_evicted", String.valueOf(evicted.sum()));
+        for (Map.Entry<String, Histogram> e : commands.entrySet()) put(v, e.getKey(), e.getValue());
+        put(v, "fsync", fsync);
+        put(v, "save", save);
+        put(v, "inbox_load", inboxLoad);
+        put(v, "index_load", indexLoad);
+        return v;
+    }
+
+    private static void put(Map<String, String> v, String name, Histogram h) {
+        Histogram.Snapshot s = h.snapshot();
+        if (s.count() == 0) return;
+        String p = "lat." + name + ".";
+        v.put(p + "count", String.valueOf(s.count()));
+        v.put(p + "mean_us", String.valueOf(s.mean()));
+        v.put(p + "p50_us", String.valueOf(s.p50()));
+        v.put(p + "p90_us", String.valueOf(s.p90()));
+        v.put(p + "p99_us", String.valueOf(s.p99()));
+        v.put(p + "p999_us", String.valueOf(s.p999()));
+        v.put(p + "max_us", String.valueOf(s.max()));
+    }
+}
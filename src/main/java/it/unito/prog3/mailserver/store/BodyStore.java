@@ -0,0 +1,517 @@
+package it.unito.prog3.mailserver.store;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Archivio su disco dei corpi dei messaggi.
+ * <p>I corpi sono scritti in segmenti append-only ({@code seg-N.dat}) e letti solo quando
+ * servono: in memoria resta il riferimento {@link Ref}, non il testo. Vengono memorizzati
+ * già in Base64, la stessa forma usata nello snapshot e sul protocollo.</p>
+ * <p>I segmenti sono letti tramite mappatura in memoria ({@link MappedByteBuffer}): i corpi
+ * stanno nella page cache del sistema operativo e non nello heap, che cresce quindi con il
+ * numero di messaggi e non con la loro dimensione. Si mappano solo i segmenti chiusi: il
+ * segmento in scrittura cresce a ogni corpo, e rimapparlo a ogni lettura costerebbe più della
+ * lettura stessa, quindi i suoi corpi si leggono con letture posizionali.</p>
+ * <p>Un corpo cancellato da tutti i destinatari resta nel suo segmento finché la
+ * compattazione ({@link #compact}) non copia i corpi ancora vivi di un segmento chiuso, per
+ * lo più vuoto, in fondo a quello in scrittura e ne cancella il file. Lo spostamento è
+ * registrato in {@code seg-N.fwd}: i riferimenti già scritti in snapshot e journal restano
+ * validi e sono risolti a ogni lettura ({@link #resolve}).</p>
+ */
+class BodyStore implements Closeable, Flushable {
+
+    /** Dimensione oltre la quale si apre un nuovo segmento. */
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String DATA = ".dat";
+    private static final String FORWARD = ".fwd";
+    /** Byte di corpi copiati per volta quando si compatta un segmento. */
+    private static final int COPY_CHUNK = 4 * 1024 * 1024;
+
+    /**
+     * Posizione di un corpo su disco, serializzata come {@code @segmento:offset:lunghezza}.
+     */
+    record Ref(int segment, long offset, int length) implements Serializable {
+
+        static final char PREFIX = '@';
+
+        /** @return true se il campo è un riferimento e non un corpo Base64 inline */
+        static boolean isRef(String field) {
+            return !field.isEmpty() && field.charAt(0) == PREFIX;
+        }
+
+        static Ref parse(String field) {
+            String[] p = field.substring(1).split(":");
+            return new Ref(Integer.parseInt(p[0]), Long.parseLong(p[1]), Integer.parseInt(p[2]));
+        }
+
+        String encode() {
+            return PREFIX + "" + segment + ":" + offset + ":" + length;
+        }
+    }
+
+    /** Canale di lettura posizionale di un segmento. */
+    private record Tail(int segment, FileChannel ch) {}
+
+    /** Nuova posizione dei corpi vivi di un segmento compattato, per offset crescente. */
+    private record Forward(long[] offsets, int[] segments, long[] targets) {}
+
+    /**
+     * Corpi ancora referenziati nei segmenti candidati alla compattazione, segnalati da chi
+     * li referenzia con {@link #add}. Non è thread-safe.
+     */
+    final class Live {
+
+        /** Per segmento: offset nei 32 bit alti, lunghezza nei bassi (un segmento non supera 2 GB). */
+        private final Map<Integer, long[]> marks = new HashMap<>();
+        private final Map<Integer, Integer> counts = new HashMap<>();
+
+        private Live(List<Integer> candidates) {
+            for (int seg : candidates) {
+                marks.put(seg, new long[64]);
+                counts.put(seg, 0);
+            }
+        }
+
+        /** Segnala un riferimento vivo; quelli fuori dai candidati sono ignorati. */
+        void add(Ref ref) {
+            Ref at = resolve(ref);
+            long[] m = marks.get(at.segment());
+            if (m == null) return;
+            int n = counts.get(at.segment());
+            if (n == m.length) {
+                m = Arrays.copyOf(m, n * 2);
+                marks.put(at.segment(), m);
+            }
+            m[n] = at.offset() << 32 | at.length();
+            counts.put(at.segment(), n + 1);
+        }
+
+        /** @return corpi vivi del segmento, ordinati e senza ripetizioni (i messaggi condivisi) */
+        private long[] of(int seg) {
+            long[] m = Arrays.copyOf(marks.get(seg), counts.get(seg));
+            Arrays.sort(m);
+            int w = 0;
+            for (int i = 0; i < m.length; i++) {
+                if (w == 0 || m[i] != m[w - 1]) m[w++] = m[i];
+            }
+            return Arrays.copyOf(m, w);
+        }
+    }
+
+    private final Path dir;
+    private final Map<Integer, MappedByteBuffer> maps = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private FileChannel writer;
+    private int writeSegment = -1;
+    /** Segmento in scrittura, letto senza lock; -1 finché non si scrive. */
+    private volatile int active = -1;
+    /** Canale di lettura del segmento in scrittura, {@code null} finché non serve. */
+    private volatile Tail tail;
+    private final ReentrantLock tailLock = new ReentrantLock();
+    /** Corpi spostati dai segmenti compattati, per segmento d'origine. */
+    private final Map<Integer, Forward> forwards = new ConcurrentHashMap<>();
+    /** Byte di corpi cancellati dall'ultima compattazione (stima). */
+    private final AtomicLong garbage = new AtomicLong();
+
+    BodyStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Carica le tabelle di spostamento. Un segmento compattato ancora presente (interruzione
+     * prima della cancellazione) viene cancellato ora.
+     */
+    void open() throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        List<Path> files;
+        try (var list = Files.list(dir)) {
+            files = list.toList();
+        }
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            if (name.startsWith("seg-") && name.endsWith(FORWARD + ".tmp")) {
+                Files.delete(p);
+            } else if (name.startsWith("seg-") && name.endsWith(FORWARD)) {
+                int seg = segmentOf(name);
+                forwards.put(seg, readForward(p));
+                Files.deleteIfExists(segmentPath(seg));
+            }
+        }
+    }
+
+    /**
+     * Accoda un corpo in fondo al segmento corrente.
+     *
+     * @param body64 corpo in Base64 (ASCII)
+     * @return riferimento al corpo scritto
+     */
+    Ref append(byte[] body64) throws IOException {
+        writeLock.lock();
+        try {
+            if (writer == null || writer.size() + body64.length > SEGMENT_BYTES) roll();
+            long offset = writer.size();
+            ByteBuffer buf = ByteBuffer.wrap(body64);
+            while (buf.hasRemaining()) writer.write(buf);
+            return new Ref(writeSegment, offset, body64.length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Accoda più corpi con una sola gathering write per segmento.
+     *
+     * @param bodies64 corpi in Base64 (ASCII)
+     * @return riferimenti, nello stesso ordine
+     */
+    List<Ref> appendAll(List<byte[]> bodies64) throws IOException {
+        List<Ref> refs = new ArrayList<>(bodies64.size());
+        writeLock.lock();
+        try {
+            if (writer == null) roll();
+            long offset = writer.size();
+            List<ByteBuffer> group = new ArrayList<>();
+            for (byte[] body64 : bodies64) {
+                if (offset + body64.length > SEGMENT_BYTES && offset > 0) {
+                    writeFully(group);
+                    roll();
+                    offset = writer.size();
+                }
+                group.add(ByteBuffer.wrap(body64));
+                refs.add(new Ref(writeSegment, offset, body64.length));
+                offset += body64.length;
+            }
+            writeFully(group);
+            return refs;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFully(List<ByteBuffer> group) throws IOException {
+        ByteBuffer[] bufs = group.toArray(ByteBuffer[]::new);
+        for (int from = 0; from < bufs.length; ) {
+            writer.write(bufs, from, Math.min(bufs.length - from, 1024));
+            while (from < bufs.length && !bufs[from].hasRemaining()) from++;
+        }
+        group.clear();
+    }
+
+    /** @return corpo in Base64 letto dal disco */
+    byte[] read(Ref ref) throws IOException {
+        byte[] out = new byte[ref.length()];
+        slice(ref).get(out);
+        return out;
+    }
+
+    /**
+     * @return vista in sola lettura del corpo: nella mappatura del segmento, senza copia, se è
+     *         chiuso; letta in un buffer se è quello in scrittura
+     */
+    ByteBuffer slice(Ref ref) throws IOException {
+        Ref at = resolve(ref);
+        try {
+            return locate(at);
+        } catch (IOException e) {
+            // segmento compattato mentre si leggeva: il corpo ora è altrove
+            Ref moved = resolve(at);
+            if (moved.equals(at)) throw e;
+            return locate(moved);
+        }
+    }
+
+    /** @return posizione attuale del corpo, seguendo gli spostamenti delle compattazioni */
+    Ref resolve(Ref ref) {
+        Forward f;
+        while ((f = forwards.get(ref.segment())) != null) {
+            int i = Arrays.binarySearch(f.offsets(), ref.offset());
+            if (i < 0) return ref; // non spostato perché cancellato: la lettura fallirà
+            ref = new Ref(f.segments()[i], f.targets()[i], ref.length());
+        }
+        return ref;
+    }
+
+    private ByteBuffer locate(Ref ref) throws IOException {
+        long end = ref.offset() + ref.length();
+        MappedByteBuffer map = maps.get(ref.segment());
+        if (map != null && map.capacity() >= end) return map.slice((int) ref.offset(), ref.length());
+        if (ref.segment() == active) {
+            try {
+                return readTail(ref);
+            } catch (ClosedChannelException e) {
+                // segmento chiuso nel frattempo: ora si può mappare
+            }
+        }
+        return remap(ref.segment(), end).slice((int) ref.offset(), ref.length());
+    }
+
+    /** Legge un corpo del segmento in scrittura con una lettura posizionale (in copia). */
+    private ByteBuffer readTail(Ref ref) throws IOException {
+        Tail t = tail;
+        if (t == null || t.segment() != ref.segment() || !t.ch().isOpen()) {
+            tailLock.lock();
+            try {
+                // il segmento è stato chiuso mentre si arrivava qui
+                if (ref.segment() != active) throw new ClosedChannelException();
+                t = tail;
+                if (t == null || !t.ch().isOpen()) {
+                    t = new Tail(active, FileChannel.open(segmentPath(active), StandardOpenOption.READ));
+                    tail = t;
+                }
+            } finally {
+                tailLock.unlock();
+            }
+        }
+        FileChannel ch = t.ch();
+        ByteBuffer b = ByteBuffer.allocate(ref.length());
+        while (b.hasRemaining()) {
+            if (ch.read(b, ref.offset() + b.position()) < 0) {
+                throw new IOException("Corpo troncato in " + segmentPath(ref.segment()));
+            }
+        }
+        return b.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Registra la cancellazione di un messaggio da una delle {@code holders} inbox che lo
+     * contenevano: quando l'ultima lo cancella il corpo è stato contato per intero.
+     */
+    void released(Ref ref, int holders) {
+        garbage.addAndGet(ref.length() / Math.max(1, holders));
+    }
+
+    /** @return true se i corpi cancellati dall'ultima compattazione giustificano una nuova */
+    boolean wasteful() {
+        return garbage.get() >= SEGMENT_BYTES / 2;
+    }
+
+    /**
+     * Inizia una compattazione: i candidati sono i segmenti chiusi e non ancora compattati.
+     * Va chiamato quando tutti i corpi scritti finora sono già referenziati dagli shard: quelli
+     * scritti dopo finiscono nel segmento in scrittura o in uno nuovo, mai tra i candidati.
+     */
+    Live live() throws IOException {
+        garbage.set(0);
+        List<Integer> segments = new ArrayList<>();
+        if (Files.isDirectory(dir)) {
+            try (var files = Files.list(dir)) {
+                files.map(p -> p.getFileName().toString())
+                        .filter(n -> n.startsWith("seg-") && n.endsWith(DATA))
+                        .forEach(n -> segments.add(segmentOf(n)));
+            }
+        }
+        // senza scritture dall'avvio l'ultimo segmento può ancora essere ripreso
+        int open = active >= 0 ? active : segments.stream().mapToInt(Integer::intValue).max().orElse(-1);
+        segments.removeIf(seg -> seg >= open || forwards.containsKey(seg));
+        return new Live(segments);
+    }
+
+    /**
+     * Compatta i segmenti candidati con al più metà dei byte ancora vivi: i corpi vivi sono
+     * copiati in fondo al segmento in scrittura, la tabella di spostamento resa durevole e
+     * solo allora il segmento cancellato.
+     *
+     * @return segmenti compattati e byte liberati
+     */
+    long[] compact(Live live) throws IOException {
+        long segments = 0, freed = 0;
+        for (int seg : live.marks.keySet()) {
+            long[] marks = live.of(seg);
+            long size = Files.size(segmentPath(seg));
+            long used = 0;
+            for (long m : marks) used += (int) m;
+            if (used * 2 > size) continue;
+            relocate(seg, marks);
+            segments++;
+            freed += size - used;
+        }
+        return new long[] {segments, freed};
+    }
+
+    private void relocate(int seg, long[] marks) throws IOException {
+        int[] segments = new int[marks.length];
+        long[] targets = new long[marks.length];
+        List<byte[]> chunk = new ArrayList<>();
+        long bytes = 0;
+        int from = 0;
+        for (int i = 0; i < marks.length; i++) {
+            byte[] b = read(new Ref(seg, marks[i] >>> 32, (int) marks[i]));
+            chunk.add(b);
+            bytes += b.length;
+            if (bytes >= COPY_CHUNK || i == marks.length - 1) {
+                List<Ref> moved = appendAll(chunk);
+                for (int k = 0; k < moved.size(); k++) {
+                    segments[from + k] = moved.get(k).segment();
+                    targets[from + k] = moved.get(k).offset();
+                }
+                from = i + 1;
+                chunk = new ArrayList<>();
+                bytes = 0;
+            }
+        }
+        flush();
+        long[] offsets = new long[marks.length];
+        for (int i = 0; i < marks.length; i++) offsets[i] = marks[i] >>> 32;
+        writeForward(seg, offsets, segments, targets);
+        forwards.put(seg, new Forward(offsets, segments, targets));
+        maps.remove(seg);
+        try {
+            Files.delete(segmentPath(seg));
+        } catch (IOException e) {
+            // ancora mappato (Windows): si cancella al prossimo avvio
+        }
+        maps.remove(seg);
+    }
+
+    /** Tabella {@code seg-N.fwd}: {@code int n, n × (long offset, int segmento, long offset)}. */
+    private void writeForward(int seg, long[] offsets, int[] segments, long[] targets) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4 + offsets.length * 20);
+        b.putInt(offsets.length);
+        for (int i = 0; i < offsets.length; i++) b.putLong(offsets[i]).putInt(segments[i]).putLong(targets[i]);
+        b.flip();
+        Path path = dir.resolve(String.format("seg-%05d%s", seg, FORWARD));
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (b.hasRemaining()) ch.write(b);
+            ch.force(true);
+        }
+        Files.move(tmp, path, REPLACE_EXISTING);
+        MailSnapshot.syncDirectory(dir);
+    }
+
+    private static Forward readForward(Path path) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            int n = b.getInt();
+            long[] offsets = new long[n];
+            int[] segments = new int[n];
+            long[] targets = new long[n];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = b.getLong();
+                segments[i] = b.getInt();
+                targets[i] = b.getLong();
+            }
+            return new Forward(offsets, segments, targets);
+        } catch (RuntimeException e) {
+            throw new IOException("Tabella di spostamento non valida: " + path);
+        }
+    }
+
+    /** Rende durevoli i corpi scritti finora (da chiamare prima di registrarne i riferimenti). */
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (writer != null) writer.force(false);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Apre il segmento di scrittura: alla prima scrittura riprende l'ultimo segmento
+     * su disco se ha ancora spazio, altrimenti passa al successivo.
+     */
+    private void roll() throws IOException {
+        Files.createDirectories(dir);
+        if (writer != null) {
+            writer.force(false);
+            writer.close();
+            writer = null;
+        } else {
+            try (var files = Files.list(dir)) {
+                // anche i compattati: un numero di segmento non si riusa
+                writeSegment = files.map(p -> p.getFileName().toString())
+                        .filter(n -> n.startsWith("seg-") && (n.endsWith(DATA) || n.endsWith(FORWARD)))
+                        .mapToInt(BodyStore::segmentOf)
+                        .max().orElse(-1);
+            }
+            if (writeSegment >= 0 && !forwards.containsKey(writeSegment)
+                    && Files.size(segmentPath(writeSegment)) < SEGMENT_BYTES) {
+                writer = open(writeSegment);
+                activate();
+                return;
+            }
+        }
+        writeSegment++;
+        writer = open(writeSegment);
+        activate();
+    }
+
+    /** Pubblica il nuovo segmento in scrittura e chiude il canale di lettura del precedente. */
+    private void activate() throws IOException {
+        active = writeSegment;
+        tailLock.lock();
+        try {
+            if (tail != null) tail.ch().close();
+            tail = null;
+        } finally {
+            tailLock.unlock();
+        }
+    }
+
+    private FileChannel open(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Mappa il segmento per intero, a condizione che copra almeno {@code end} byte. Il
+     * segmento in scrittura non passa di qui: i corpi oltre la mappatura si leggono con
+     * {@link #readTail}.
+     */
+    private MappedByteBuffer remap(int segment, long end) throws IOException {
+        try {
+            return maps.compute(segment, (seg, cur) -> {
+                if (cur != null && cur.capacity() >= end) return cur;
+                try (FileChannel ch = FileChannel.open(segmentPath(seg), StandardOpenOption.READ)) {
+                    long size = ch.size();
+                    if (size < end) throw new IOException("Corpo troncato in " + segmentPath(seg));
+                    return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("seg-%05d%s", segment, DATA));
+    }
+
+    /** @return numero di segmento da un nome {@code seg-N.dat} o {@code seg-N.fwd} */
+    private static int segmentOf(String name) {
+        return Integer.parseInt(name.substring(4, name.indexOf('.')));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) writer.close();
+        if (tail != null) tail.ch().close();
+        maps.clear();
+    }
+}
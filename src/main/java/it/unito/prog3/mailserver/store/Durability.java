@@ -0,0 +1,36 @@
+package it.unito.prog3.mailserver.store;
+
+import java.util.Locale;
+
+/**
+ * Politica di durabilità del journal di {@link MailStore}.
+ * <p>Si sceglie all'avvio con {@code -Dmailserver.durability=fsync|batch|os}
+ * (finestra di batch in ms con {@code -Dmailserver.batchWindowMs}).</p>
+ */
+public enum Durability {
+
+    /** fsync dopo ogni singolo record: massima sicurezza, nessun raggruppamento. */
+    FSYNC,
+    /** Group commit: i record arrivati entro la finestra vengono scritti e sincronizzati insieme. */
+    BATCH,
+    /** Scrittura nella cache del sistema operativo, senza fsync. */
+    OS;
+
+    static final String PROP_MODE   = "mailserver.durability";
+    static final String PROP_WINDOW = "mailserver.batchWindowMs";
+
+    /** @return politica configurata, {@link #BATCH} se assente o non valida */
+    public static Durability fromProperty() {
+        String v = System.getProperty(PROP_MODE, BATCH.name());
+        try {
+            return valueOf(v.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return BATCH;
+        }
+    }
+
+    /** @return finestra di raggruppamento in millisecondi (default 2) */
+    public static long windowMillis() {
+        return Long.getLong(PROP_WINDOW, 2L);
+    }
+}
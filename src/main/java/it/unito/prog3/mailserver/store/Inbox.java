@@ -0,0 +1,389 @@
+package it.unito.prog3.mailserver.store;
+
+import shared.Email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Casella di posta di un singolo utente.
+ * <p>I messaggi sono tenuti in ordine di id (gli id crescono sempre): la lettura
+ * dei nuovi messaggi parte da una ricerca binaria e la cancellazione marca come vuoto
+ * lo slot trovato allo stesso modo, senza strutture per messaggio oltre ai due array
+ * (conta al caricamento di archivi grandi). Gli slot vuoti vengono compattati
+ * quando superano i messaggi presenti.</p>
+ * <p>Le letture non prendono lock: ogni modifica pubblica una {@link View} immutabile
+ * tramite un campo volatile. Gli scrittori sono serializzati da un {@link ReentrantLock}
+ * (sicuro per i virtual thread) e aggiungono in coda oltre la dimensione già pubblicata,
+ * quindi i lettori non vedono mai slot a metà. Solo l'azzeramento di uno slot cancellato
+ * tocca una porzione già pubblicata: un lettore concorrente vede il messaggio oppure no,
+ * entrambi stati validi.</p>
+ * <p>L'indice di ricerca ({@link SearchIndex}) è caricato alla prima ricerca e da lì
+ * aggiornato da ogni aggiunta e cancellazione, sotto lo stesso lock. Gli id cancellati vi
+ * restano finché non superano i messaggi presenti, come gli slot vuoti.</p>
+ */
+class Inbox {
+
+    private static final int MIN_COMPACT = 32;
+
+    /**
+     * Stato pubblicato ai lettori.
+     *
+     * @param ids     id per slot, ordinati
+     * @param mails   messaggi per slot ({@code null} se cancellato)
+     * @param size    slot validi
+     * @param lastId  id più alto presente negli slot (0 se vuota)
+     * @param version numero di modifiche applicate
+     * @param count   messaggi presenti
+     * @param bytes   byte dei corpi presenti, come memorizzati
+     */
+    record View(int[] ids, Email[] mails, int size, int lastId, long version, int count, long bytes) {}
+
+    private static final View EMPTY = new View(new int[0], new Email[0], 0, 0, 0, 0, 0);
+
+    private int[] ids = new int[8];
+    private Email[] mails = new Email[8];
+    /** Slot occupati, compresi quelli cancellati (mails[i] == null). */
+    private int size;
+    private int live;
+    private long bytes;
+    /** Stima dell'heap dei messaggi presenti, vedi {@link #heapOf}. */
+    private long heap;
+    private long version;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile View view = EMPTY;
+    /** Attese WATCH registrate, completate alla prossima consegna. */
+    private final Queue<CompletableFuture<Void>> watchers = new ConcurrentLinkedQueue<>();
+    /** Ultimo accesso di un client ({@link System#nanoTime()}), per scegliere le inbox da scaricare. */
+    private volatile long lastAccess = System.nanoTime();
+    /** Indice di ricerca, {@code null} finché nessuno cerca. Sotto {@code writeLock}. */
+    private SearchIndex index;
+
+    /**
+     * Aggiunge un messaggio mantenendo l'ordine per id.
+     *
+     * @return false se il messaggio era già presente
+     */
+    boolean add(Email e) {
+        writeLock.lock();
+        try {
+            int id = e.getId();
+            if (slot(id) >= 0) return false;
+            if (size == ids.length) grow();
+            if (size == 0 || id > ids[size - 1]) {
+                put(size, e);
+                size++;
+            } else {
+                // id assegnato prima ma consegnato dopo: inserimento ordinato (raro, vicino alla coda).
+                // Lo spostamento toccherebbe slot già pubblicati: si lavora su una copia.
+                ids = ids.clone();
+                mails = mails.clone();
+                int at = Arrays.binarySearch(ids, 0, size, id);
+                if (at < 0) {
+                    at = -at - 1;
+                    System.arraycopy(ids, at, ids, at + 1, size - at);
+                    System.arraycopy(mails, at, mails, at + 1, size - at);
+                    size++;
+                }
+                // at >= 0: slot dello stesso id già cancellato, lo si riusa
+                put(at, e);
+            }
+            live++;
+            bytes += sizeOf(e);
+            heap += heapOf(e);
+            if (index != null) index.add(e);
+            publish();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Messaggi con id > lastId, senza lock: se non c'è nulla di nuovo
+     * il costo è una sola lettura volatile.
+     *
+     * @return messaggi in ordine di id
+     */
+    List<Email> after(int lastId) {
+        View v = view;
+        if (v.lastId() <= lastId) return List.of();
+        int from = firstAfter(v, lastId);
+        List<Email> res = new ArrayList<>(v.size() - from);
+        Email[] m = v.mails();
+        for (int i = from; i < v.size(); i++) {
+            Email e = m[i];
+            if (e != null) res.add(e);
+        }
+        return res;
+    }
+
+    /** @return messaggio con quell'id, {@code null} se assente o cancellato (senza lock) */
+    Email get(int id) {
+        View v = view;
+        int at = Arrays.binarySearch(v.ids(), 0, v.size(), id);
+        return at >= 0 ? v.mails()[at] : null;
+    }
+
+    /**
+     * Iteratore pigro sui messaggi con id > lastId, letto dalla vista corrente
+     * senza copiarla: la memoria non dipende dalla dimensione della inbox.
+     */
+    Iterator<Email> iterator(int lastId) {
+        View v = view;
+        int start = (v.lastId() <= lastId) ? v.size() : firstAfter(v, lastId);
+        return new Iterator<>() {
+            private int i = start;
+            private Email ahead = advance();
+
+            /** Prossimo slot non cancellato; il riferimento letto resta valido anche se poi cancellato. */
+            private Email advance() {
+                Email[] m = v.mails();
+                while (i < v.size()) {
+                    Email e = m[i++];
+                    if (e != null) return e;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return ahead != null;
+            }
+
+            @Override
+            public Email next() {
+                if (ahead == null) throw new NoSuchElementException();
+                Email e = ahead;
+                ahead = advance();
+                return e;
+            }
+        };
+    }
+
+    /**
+     * Registra un'attesa di nuovi messaggi.
+     *
+     * @return future completato alla prossima {@link #signal()}, o subito se c'è già un id > lastId
+     */
+    CompletableFuture<Void> watch(int lastId) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        watchers.add(f);
+        // controllo dopo la registrazione: una consegna concorrente non va persa
+        if (view.lastId() > lastId) f.complete(null);
+        return f;
+    }
+
+    /** Rimuove un'attesa scaduta. */
+    void unwatch(CompletableFuture<Void> f) {
+        watchers.remove(f);
+    }
+
+    /** Risveglia tutte le attese registrate. */
+    void signal() {
+        CompletableFuture<Void> f;
+        while ((f = watchers.poll()) != null) f.complete(null);
+    }
+
+    /** @return true se qualcuno attende nuovi messaggi (la inbox non va scaricata) */
+    boolean watched() {
+        return !watchers.isEmpty();
+    }
+
+    /** Registra un accesso da parte di un client. */
+    void touch() {
+        lastAccess = System.nanoTime();
+    }
+
+    long lastAccess() {
+        return lastAccess;
+    }
+
+    /** @return messaggio rimosso, {@code null} se non era presente */
+    Email remove(int id) {
+        writeLock.lock();
+        try {
+            int slot = slot(id);
+            if (slot < 0) return null;
+            Email removed = mails[slot];
+            bytes -= sizeOf(removed);
+            heap -= heapOf(removed);
+            mails[slot] = null;
+            live--;
+            if (index != null) {
+                index.deleted(id);
+                purgeIndex();
+            }
+            int holes = size - live;
+            if (holes >= MIN_COMPACT && holes > live) compact();
+            publish();
+            return removed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Ripulisce l'indice quando i cancellati superano i presenti. Sotto {@code writeLock}. */
+    private void purgeIndex() {
+        if (index.stale() >= MIN_COMPACT && index.stale() > live) index.purge();
+    }
+
+    private void put(int slot, Email e) {
+        ids[slot] = e.getId();
+        mails[slot] = e;
+    }
+
+    /** @return slot del messaggio {@code id}, -1 se assente o cancellato. Sotto {@code writeLock}. */
+    private int slot(int id) {
+        int at = Arrays.binarySearch(ids, 0, size, id);
+        return at >= 0 && mails[at] != null ? at : -1;
+    }
+
+    private void publish() {
+        view = new View(ids, mails, size, size == 0 ? 0 : ids[size - 1], ++version, live, bytes);
+    }
+
+    /** @return messaggi presenti (senza lock) */
+    int count() {
+        return view.count();
+    }
+
+    /** @return byte dei corpi presenti (senza lock) */
+    long bytes() {
+        return view.bytes();
+    }
+
+    /** @return true se l'indice di ricerca è caricato */
+    boolean indexed() {
+        writeLock.lock();
+        try {
+            return index != null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Aggancia l'indice di ricerca, allineato ai messaggi presenti. */
+    void index(SearchIndex idx) {
+        writeLock.lock();
+        try {
+            index = idx;
+            purgeIndex();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** @return indice di ricerca, {@code null} se non caricato */
+    SearchIndex index() {
+        writeLock.lock();
+        try {
+            return index;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Messaggi con id > lastId che contengono tutti i termini di {@code query}, in ordine di id.
+     * Gli id sono calcolati sotto lock, i messaggi letti poi dalla vista corrente.
+     */
+    Iterator<Email> search(List<String> query, int lastId) {
+        int[] ids;
+        writeLock.lock();
+        try {
+            ids = (index == null) ? new int[0] : index.search(query, lastId);
+        } finally {
+            writeLock.unlock();
+        }
+        return new Iterator<>() {
+            private int i;
+            private Email ahead = advance();
+
+            /** Prossimo id ancora presente (uno cancellato nel frattempo si salta). */
+            private Email advance() {
+                while (i < ids.length) {
+                    Email e = get(ids[i++]);
+                    if (e != null) return e;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return ahead != null;
+            }
+
+            @Override
+            public Email next() {
+                if (ahead == null) throw new NoSuchElementException();
+                Email e = ahead;
+                ahead = advance();
+                return e;
+            }
+        };
+    }
+
+    /** @return stima dell'heap occupato dai messaggi presenti e dall'indice di ricerca */
+    long heap() {
+        writeLock.lock();
+        try {
+            return heap + (index == null ? 0 : index.heap());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** @return byte del corpo come memorizzato */
+    static long sizeOf(Email e) {
+        return (e instanceof StoredEmail s) ? s.ref().length() : e.getBody().length();
+    }
+
+    /**
+     * Stima dell'heap occupato da un messaggio in inbox: oggetti di intestazione, data e
+     * riferimento al corpo, più oggetto e destinatari (gli indirizzi sono condivisi).
+     */
+    static long heapOf(Email e) {
+        return 200 + 2L * e.getSubject().length() + 8L * e.getTo().size();
+    }
+
+    /** Indice del primo slot con id > lastId. */
+    private static int firstAfter(View v, int lastId) {
+        int[] ids = v.ids();
+        int lo = 0, hi = v.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ids[mid] <= lastId) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private void grow() {
+        int cap = ids.length * 2;
+        ids = Arrays.copyOf(ids, cap);
+        mails = Arrays.copyOf(mails, cap);
+    }
+
+    /** Elimina gli slot vuoti su nuovi array. */
+    private void compact() {
+        int[] nIds = new int[Math.max(8, live * 2)];
+        Email[] nMails = new Email[nIds.length];
+        int w = 0;
+        for (int r = 0; r < size; r++) {
+            if (mails[r] == null) continue;
+            nIds[w] = ids[r];
+            nMails[w] = mails[r];
+            w++;
+        }
+        ids = nIds;
+        mails = nMails;
+        size = w;
+    }
+}
@@ -0,0 +1,234 @@
+package it.unito.prog3.mailserver.store;
+
+import it.unito.prog3.mailserver.stats.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Journal append-only delle modifiche alle inbox.
+ * <p>Ogni riga è un record indipendente:</p>
+ * <ul>
+ *   <li>{@code A;id;from;toCsv;base64(subject);base64(body);ISO_LOCAL_DATE_TIME} (nuova email)</li>
+ *   <li>{@code D;utente;id} (cancellazione)</li>
+ *   <li>{@code B;n;riga\triga...} (n nuove email consegnate insieme)</li>
+ *   <li>{@code X;utente;n;idCsv} (n cancellazioni insieme)</li>
+ * </ul>
+ * <p>I record batch dichiarano il numero di elementi: uno troncato da un crash viene
+ * scartato per intero.</p>
+ * <p>All'avvio viene riletto dopo lo snapshot; dopo una compattazione viene troncato.</p>
+ * <p>Le scritture sono affidate a un unico thread (group commit): i record accodati
+ * da più richieste concorrenti vengono scritti con una sola write e resi durevoli
+ * secondo la {@link Durability} configurata.</p>
+ */
+class MailJournal implements Closeable {
+
+    static final String REC_ADD    = "A";
+    static final String REC_DELETE = "D";
+    static final String REC_ADD_BATCH    = "B";
+    static final String REC_DELETE_BATCH = "X";
+
+    /** Record in attesa di scrittura e relativa notifica di completamento. */
+    private record Pending(byte[] data, CompletableFuture<Void> done) {}
+
+    private final Path path;
+    private final Durability durability;
+    private final long windowMillis;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Consumer<String> log;
+    /** File da rendere durevoli prima del journal, perché i record vi fanno riferimento. */
+    private final Flushable beforeSync;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private FileChannel channel;
+    private Thread writer;
+    private volatile int records;
+
+    MailJournal(Path path, Durability durability, long windowMillis, Consumer<String> log, Flushable beforeSync) {
+        this.path = path;
+        this.durability = durability;
+        this.windowMillis = windowMillis;
+        this.log = log;
+        this.beforeSync = beforeSync;
+    }
+
+    /**
+     * Rilegge tutti i record presenti su disco.
+     *
+     * @param apply callback invocata per ogni riga del journal
+     * @return numero di record letti
+     */
+    int replay(Consumer<String> apply) throws IOException {
+        int n = 0;
+        if (Files.exists(path)) {
+            try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    apply.accept(line);
+                    n++;
+                }
+            }
+        }
+        records = n;
+        return n;
+    }
+
+    /**
+     * Accoda un record per la scrittura.
+     *
+     * @return future completato quando il batch che contiene il record è durevole
+     */
+    CompletableFuture<Void> append(String record) {
+        ensureWriter();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending((record + "\n").getBytes(StandardCharsets.UTF_8), done));
+        records++;
+        return done;
+    }
+
+    /** Attende che tutti i record accodati finora siano stati scritti. */
+    void sync() {
+        ensureWriter();
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        queue.add(new Pending(new byte[0], barrier));
+        barrier.join();
+    }
+
+    /**
+     * Svuota il journal: da chiamare solo dopo {@link #sync()} e la scrittura
+     * di uno snapshot completo, senza altri append concorrenti.
+     */
+    void reset() throws IOException {
+        openChannel();
+        channel.truncate(0);
+        channel.force(true);
+        records = 0;
+    }
+
+    /** @return record accumulati dall'ultima compattazione */
+    int size() {
+        return records;
+    }
+
+    private void ensureWriter() {
+        lock.lock();
+        try {
+            if (writer != null) return;
+            writer = new Thread(this::writeLoop, "journal-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                if (durability != Durability.FSYNC) {
+                    if (durability == Durability.BATCH && windowMillis > 0) {
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                        long left;
+                        while ((left = deadline - System.nanoTime()) > 0) {
+                            Pending p = queue.poll(left, TimeUnit.NANOSECONDS);
+                            if (p == null) break;
+                            batch.add(p);
+                        }
+                    }
+                    queue.drainTo(batch);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) {
+        long good = -1;
+        try {
+            int len = 0;
+            for (Pending p : batch) len += p.data().length;
+            if (len > 0) {
+                openChannel();
+                good = channel.position();
+                ByteBuffer buf = ByteBuffer.allocate(len);
+                for (Pending p : batch) buf.put(p.data());
+                buf.flip();
+                while (buf.hasRemaining()) channel.write(buf);
+                if (durability != Durability.OS) {
+                    long start = System.nanoTime();
+                    beforeSync.flush();
+                    channel.force(false);
+                    Metrics.getInstance().fsync().recordSince(start);
+                }
+            }
+            for (Pending p : batch) p.done().complete(null);
+        } catch (IOException e) {
+            log.accept("Errore scrittura journal: " + e.getMessage());
+            if (good >= 0) discard(good);
+            for (Pending p : batch) p.done().completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Toglie dal file quanto scritto dal batch fallito, anche una riga a metà: i record
+     * successivi non finiscono incollati a un frammento illeggibile.
+     */
+    private void discard(long good) {
+        try {
+            channel.truncate(good);
+            channel.position(good);
+        } catch (IOException e) {
+            // si riapre alla prossima scrittura, chiudendo la riga a metà
+            log.accept("Errore ripristino journal: " + e.getMessage());
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void openChannel() throws IOException {
+        lock.lock();
+        try {
+            if (channel != null && channel.isOpen()) return;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long size = channel.size();
+            channel.position(size);
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if (size > 0 && channel.read(last, size - 1) == 1 && last.get(0) != '\n') {
+                // riga troncata (crash o scrittura fallita): la si chiude, al riavvio viene scartata
+                channel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            sync();
+            writer.interrupt();
+        }
+        if (channel != null) channel.close();
+    }
+}
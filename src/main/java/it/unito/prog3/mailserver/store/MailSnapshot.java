@@ -0,0 +1,397 @@
+package it.unito.prog3.mailserver.store;
+
+import shared.Email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Snapshot binario di uno {@link Shard} ({@code mails-K.bin}), diviso in sezioni per utente:
+ * all'avvio si legge solo l'indice e la inbox di un utente si carica leggendo la sua sezione.
+ * <p>Formato (big endian):</p>
+ * <pre>
+ * int magic, int versione (2), int utenti, int id massimo, long inizio dati
+ * int indirizzi, indirizzi × str
+ * utenti × (int utente, long offset, int lunghezza, int messaggi, long byte dei corpi)
+ * sezioni: messaggi × (int id, int from, int nTo, nTo × int, str oggetto,
+ *                      int seg, long off, int len (corpo), long secondi, int nano (data UTC))
+ * </pre>
+ * <p>{@code str} è un int di lunghezza seguito dai byte UTF-8; utenti, mittenti e destinatari
+ * sono indici nella tabella degli indirizzi. La tabella cresce soltanto, così la compattazione
+ * copia byte per byte le sezioni degli utenti non modificati. Un messaggio con più destinatari
+ * compare nella sezione di ognuno; il corpo resta uno solo nel {@link BodyStore}.</p>
+ * <p>La versione 1 (un record per messaggio con i suoi holders, in chunk decodificati in
+ * parallelo) è ancora letta da {@link #readMessages} per convertirla.</p>
+ */
+final class MailSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x4D534E50; // "MSNP"
+    /** Versione con un record per messaggio e gli holders. */
+    static final int VERSION_MESSAGES = 1;
+    static final int VERSION = 2;
+    private static final int FIXED_HEADER = 4 + 4 + 4 + 4 + 8;
+    private static final int INDEX_ENTRY = 4 + 8 + 4 + 4 + 8;
+
+    /** Messaggio letto da uno snapshot di versione 1, ancora da consegnare. */
+    record Entry(StoredEmail email, List<String> holders) {}
+
+    /**
+     * Sezione di un utente.
+     *
+     * @param offset posizione nel file
+     * @param length byte della sezione
+     * @param count  messaggi
+     * @param bytes  byte dei corpi, come memorizzati
+     */
+    record Section(long offset, int length, int count, long bytes) {}
+
+    private final Path path;
+    private final FileChannel ch;
+    private final List<String> addresses;
+    private final Map<String, Section> sections;
+    private final int maxId;
+    private final BodyStore bodies;
+
+    private MailSnapshot(Path path, FileChannel ch, List<String> addresses, Map<String, Section> sections,
+                         int maxId, BodyStore bodies) {
+        this.path = path;
+        this.ch = ch;
+        this.addresses = addresses;
+        this.sections = sections;
+        this.maxId = maxId;
+        this.bodies = bodies;
+    }
+
+    /** @return versione del file, 0 se non è uno snapshot binario */
+    static int version(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() < 8) return 0;
+            ByteBuffer b = read(ch, 0, 8);
+            return b.getInt() == MAGIC ? b.getInt() : 0;
+        }
+    }
+
+    /** Apre uno snapshot di versione {@link #VERSION} leggendone solo l'indice. */
+    static MailSnapshot open(Path path, BodyStore bodies) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer fixed = read(ch, 0, FIXED_HEADER);
+            if (fixed.getInt() != MAGIC || fixed.getInt() != VERSION) {
+                throw new IOException("Snapshot non valido: " + path);
+            }
+            int users = fixed.getInt();
+            int maxId = fixed.getInt();
+            long dataStart = fixed.getLong();
+            if (dataStart > ch.size()) throw new IOException("Snapshot troncato: " + path);
+            ByteBuffer header = read(ch, FIXED_HEADER, (int) (dataStart - FIXED_HEADER));
+            List<String> addresses = new ArrayList<>(Arrays.asList(new String[header.getInt()]));
+            for (int i = 0; i < addresses.size(); i++) addresses.set(i, str(header));
+            Map<String, Section> sections = new HashMap<>(users * 2);
+            for (int i = 0; i < users; i++) {
+                String user = addresses.get(header.getInt());
+                sections.put(user, new Section(header.getLong(), header.getInt(), header.getInt(), header.getLong()));
+            }
+            return new MailSnapshot(path, ch, addresses, sections, maxId, bodies);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            // BufferUnderflow, indici fuori tabella: file troncato o corrotto
+            throw e instanceof IOException io ? io : new IOException("Snapshot non valido: " + path + " (" + e + ")");
+        }
+    }
+
+    /** @return sezioni per utente */
+    Map<String, Section> sections() {
+        return Collections.unmodifiableMap(sections);
+    }
+
+    /** @return id più alto al momento della scrittura */
+    int maxId() {
+        return maxId;
+    }
+
+    /** @return messaggi di {@code user} in ordine di id, vuota se non ha una sezione */
+    List<StoredEmail> read(String user) throws IOException {
+        Section s = sections.get(user);
+        if (s == null) return List.of();
+        ByteBuffer b = read(ch, s.offset(), s.length());
+        List<StoredEmail> res = new ArrayList<>(s.count());
+        try {
+            for (int i = 0; i < s.count(); i++) {
+                int id = b.getInt();
+                String from = addresses.get(b.getInt());
+                String[] to = new String[b.getInt()];
+                for (int j = 0; j < to.length; j++) to[j] = addresses.get(b.getInt());
+                String subject = str(b);
+                BodyStore.Ref ref = new BodyStore.Ref(b.getInt(), b.getLong(), b.getInt());
+                LocalDateTime date = LocalDateTime.ofEpochSecond(b.getLong(), b.getInt(), ZoneOffset.UTC);
+                res.add(new StoredEmail(id, from, List.of(to), subject, date, bodies, ref));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Sezione di " + user + " non valida in " + path + " (" + e + ")");
+        }
+        return res;
+    }
+
+    /**
+     * Passa a {@code out} i riferimenti ai corpi dei messaggi di {@code user}, tranne quelli
+     * con id in {@code skip}, senza costruire i messaggi.
+     */
+    void refs(String user, Set<Integer> skip, Consumer<BodyStore.Ref> out) throws IOException {
+        Section s = sections.get(user);
+        if (s == null) return;
+        ByteBuffer b = read(ch, s.offset(), s.length());
+        try {
+            for (int i = 0; i < s.count(); i++) {
+                int id = b.getInt();
+                b.position(b.position() + 4);
+                b.position(b.position() + 4 * b.getInt());
+                b.position(b.position() + b.getInt());
+                BodyStore.Ref ref = new BodyStore.Ref(b.getInt(), b.getLong(), b.getInt());
+                b.position(b.position() + 12);
+                if (!skip.contains(id)) out.accept(ref);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Sezione di " + user + " non valida in " + path + " (" + e + ")");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    /**
+     * Scrive un nuovo snapshot in {@code path}: le inbox in {@code rewritten} sono codificate
+     * dai messaggi (vuote: l'utente non ha più una sezione), le altre copiate da {@code old}.
+     *
+     * @param old snapshot precedente, {@code null} se non c'è
+     */
+    static void write(Path path, MailSnapshot old, Map<String, List<Email>> rewritten, int maxId)
+            throws IOException {
+        List<String> addresses = new ArrayList<>(old == null ? List.of() : old.addresses);
+        Map<String, Integer> index = new HashMap<>(addresses.size() * 2);
+        for (int i = 0; i < addresses.size(); i++) index.put(addresses.get(i), i);
+        TreeSet<String> users = new TreeSet<>(old == null ? List.of() : old.sections.keySet());
+        for (Map.Entry<String, List<Email>> e : rewritten.entrySet()) {
+            if (e.getValue().isEmpty()) {
+                users.remove(e.getKey());
+                continue;
+            }
+            users.add(e.getKey());
+            for (Email m : e.getValue()) {
+                address(m.getFrom(), index, addresses);
+                for (String r : m.getTo()) address(r, index, addresses);
+            }
+        }
+        for (String u : users) address(u, index, addresses);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(1 << 16);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(addresses.size());
+        for (String a : addresses) str(out, a);
+        byte[] table = buf.toByteArray();
+        long dataStart = FIXED_HEADER + table.length + (long) users.size() * INDEX_ENTRY;
+
+        Map<String, Section> written = new HashMap<>(users.size() * 2);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.position(dataStart);
+            for (String u : users) {
+                long offset = ch.position();
+                List<Email> mails = rewritten.get(u);
+                if (mails == null) {
+                    Section s = old.sections.get(u);
+                    for (long done = 0; done < s.length(); ) {
+                        done += old.ch.transferTo(s.offset() + done, s.length() - done, ch);
+                    }
+                    written.put(u, new Section(offset, s.length(), s.count(), s.bytes()));
+                    continue;
+                }
+                buf.reset();
+                long bytes = 0;
+                for (Email m : mails) {
+                    record(out, (StoredEmail) m, index);
+                    bytes += Inbox.sizeOf(m);
+                }
+                writeFully(ch, ByteBuffer.wrap(buf.toByteArray()));
+                written.put(u, new Section(offset, buf.size(), mails.size(), bytes));
+            }
+            buf.reset();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(users.size());
+            out.writeInt(maxId);
+            out.writeLong(dataStart);
+            out.write(table);
+            for (String u : users) {
+                Section s = written.get(u);
+                out.writeInt(index.get(u));
+                out.writeLong(s.offset());
+                out.writeInt(s.length());
+                out.writeInt(s.count());
+                out.writeLong(s.bytes());
+            }
+            ch.position(0);
+            writeFully(ch, ByteBuffer.wrap(buf.toByteArray()));
+            // su disco prima che la rinomina lo renda lo snapshot e il journal venga svuotato
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Rende persistenti le rinomine fatte in {@code dir} (fsync della cartella). Dove una
+     * cartella non si può aprire (Windows) non serve: la rinomina è già nel journal del
+     * file system.
+     */
+    static void syncDirectory(Path dir) throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (ch) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Legge uno snapshot di versione {@link #VERSION_MESSAGES}: i chunk sono decodificati in
+     * parallelo e passati a {@code apply} in ordine di id, un chunk alla volta.
+     *
+     * @return messaggi letti
+     */
+    static int readMessages(Path path, BodyStore bodies, Consumer<Entry> apply) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer fixed = read(ch, 0, FIXED_HEADER);
+            if (fixed.getInt() != MAGIC || fixed.getInt() != VERSION_MESSAGES) {
+                throw new IOException("Snapshot non valido: " + path);
+            }
+            int count = fixed.getInt();
+            int chunks = fixed.getInt();
+            long dataStart = fixed.getLong();
+            long size = ch.size();
+            if (dataStart > size) throw new IOException("Snapshot troncato: " + path);
+
+            ByteBuffer header = read(ch, FIXED_HEADER, (int) (dataStart - FIXED_HEADER));
+            long[] offsets = new long[chunks + 1];
+            int[] counts = new int[chunks];
+            for (int c = 0; c < chunks; c++) {
+                offsets[c] = header.getLong();
+                counts[c] = header.getInt();
+            }
+            offsets[chunks] = size;
+            String[] addresses = new String[header.getInt()];
+            for (int i = 0; i < addresses.length; i++) addresses[i] = str(header);
+
+            int[] read = {0};
+            IntStream.range(0, chunks).parallel()
+                    .mapToObj(c -> chunk(ch, offsets[c], offsets[c + 1], counts[c], addresses, bodies))
+                    .forEachOrdered(part -> {
+                        part.forEach(apply);
+                        read[0] += part.size();
+                    });
+            if (read[0] != count) throw new IOException("Snapshot incompleto: " + path);
+            return count;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            // BufferUnderflow, indici fuori tabella: file troncato o corrotto
+            throw new IOException("Snapshot non valido: " + path + " (" + e + ")");
+        }
+    }
+
+    private static List<Entry> chunk(FileChannel ch, long start, long end, int count, String[] addresses,
+                                     BodyStore bodies) {
+        ByteBuffer b;
+        try {
+            // sull'heap e non mappato: il file viene sostituito subito dopo la conversione
+            b = read(ch, start, (int) (end - start));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Entry> res = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = b.getInt();
+            String from = addresses[b.getInt()];
+            String[] rcpt = new String[b.getInt()];
+            for (int j = 0; j < rcpt.length; j++) rcpt[j] = addresses[b.getInt()];
+            List<String> to = List.of(rcpt);
+            String subject = str(b);
+            BodyStore.Ref ref = new BodyStore.Ref(b.getInt(), b.getLong(), b.getInt());
+            LocalDateTime date = LocalDateTime.ofEpochSecond(b.getLong(), b.getInt(), ZoneOffset.UTC);
+            int nHolders = b.getInt();
+            List<String> holders = to;
+            if (nHolders >= 0) {
+                String[] h = new String[nHolders];
+                for (int j = 0; j < h.length; j++) h[j] = addresses[b.getInt()];
+                holders = List.of(h);
+            }
+            res.add(new Entry(new StoredEmail(id, from, to, subject, date, bodies, ref), holders));
+        }
+        return res;
+    }
+
+    private static void record(DataOutputStream out, StoredEmail e, Map<String, Integer> index)
+            throws IOException {
+        out.writeInt(e.getId());
+        out.writeInt(index.get(e.getFrom()));
+        out.writeInt(e.getTo().size());
+        for (String r : e.getTo()) out.writeInt(index.get(r));
+        str(out, e.getSubject());
+        out.writeInt(e.ref().segment());
+        out.writeLong(e.ref().offset());
+        out.writeInt(e.ref().length());
+        out.writeLong(e.getDate().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(e.getDate().getNano());
+    }
+
+    private static void address(String a, Map<String, Integer> index, List<String> addresses) {
+        if (index.putIfAbsent(a, addresses.size()) == null) addresses.add(a);
+    }
+
+    private static void str(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String str(ByteBuffer b) {
+        byte[] s = new byte[b.getInt()];
+        b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+
+    /** Legge {@code length} byte da {@code offset} (lettura posizionale, sicura tra thread). */
+    private static ByteBuffer read(FileChannel ch, long offset, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (ch.read(b, offset + b.position()) < 0) throw new IOException("Snapshot troncato");
+        }
+        return b.flip();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+}
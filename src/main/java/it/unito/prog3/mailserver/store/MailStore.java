@@ -1,18 +1,30 @@
 package it.unito.prog3.mailserver.store;
 
+import it.unito.prog3.mailserver.log.ServerLog;
+import it.unito.prog3.mailserver.stats.Metrics;
 import shared.Email;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
@@ -20,27 +32,94 @@ import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
  * Archivio centrale delle caselle di posta.
  * Gestisce account, inbox e persistenza su file, con metodi thread-safe.
  * accounts.txt (un indirizzo per ogni riga)
- * mails.txt (id;from;toCsv;base64(subject);base64(body);ISO_LOCAL_DATE_TIME)
+ * shards-N/mails-K.txt (snapshot dello shard K: id;from;toCsv;base64(subject);@seg:off:len;ISO_LOCAL_DATE_TIME;holdersCsv)
+ * shards-N/mails-K.log (journal append-only delle modifiche successive allo snapshot, vedi {@link MailJournal})
+ * shards-N/index-K.bin (indici di ricerca per utente, vedi {@link SearchSnapshot})
+ * bodies/ (corpi dei messaggi, letti su richiesta, vedi {@link BodyStore})
+ * <p>Gli utenti sono ripartiti per hash in N {@link Shard} ({@code -Dmailserver.shards}, default
+ * {@value #DEFAULT_SHARDS}), ognuno con lock, journal e snapshot propri: le scritture verso utenti
+ * di shard diversi procedono in parallelo. Gli id restano globali e crescenti, perché i client
+ * li usano come cursore. I dati di una disposizione diversa (mails.txt/mails.log senza shard o
+ * shards-M con un altro M) sono caricati e ridistribuiti all'avvio; i file vecchi prendono il
+ * suffisso {@code .old}.</p>
+ * <p>In memoria restano solo le inbox usate di recente ({@code -Dmailserver.residentMb}, default
+ * {@value #DEFAULT_RESIDENT_MB} MB di heap stimati, 0 = nessun limite): una inbox è caricata
+ * dal disco al primo LOGIN o GET e scaricata quando resta inattiva e serve spazio, vedi
+ * {@link Shard}. Il corpo di un messaggio è scritto una volta sola nel {@link BodyStore},
+ * comune a tutti gli shard. Quando le cancellazioni hanno lasciato abbastanza corpi morti
+ * (e una volta all'avvio) un thread in background segna i corpi ancora nelle inbox e
+ * compatta i segmenti per lo più vuoti, vedi {@link #sweepBodies}.</p>
  */
 public class MailStore {
 
     private static final String ACCOUNTS_FILE = "accounts.txt";
+    /** Snapshot e journal senza shard, delle versioni precedenti. */
     private static final String MAILS_FILE    = "mails.txt";
+    private static final String JOURNAL_FILE  = "mails.log";
+    private static final String SHARDS_PREFIX = "shards-";
+    private static final String BODIES_DIR    = "bodies";
+    static final String PROP_SHARDS = "mailserver.shards";
+    static final int DEFAULT_SHARDS = 8;
+    static final String PROP_RESIDENT = "mailserver.residentMb";
+    static final int DEFAULT_RESIDENT_MB = 256;
     private static final DateTimeFormatter DATE_FMT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    /** Separatore delle righe in un record batch: nessun campo lo contiene, vedi {@link #checkFields}. */
+    private static final String BATCH_SEP = "\t";
 
     private static MailStore instance;
 
-    private final Set<String> accounts = new HashSet<>();
-    private final Map<String, List<Email>> boxes = new ConcurrentHashMap<>();
+    /** Account, immutabili dopo il caricamento: letti senza lock da tutti i thread. */
+    private Set<String> accounts = Set.of();
+    /** Inbox residenti, lette senza lock; le modifica solo lo {@link Shard} dell'utente. */
+    private final Map<String, Inbox> boxes = new ConcurrentHashMap<>();
     private final AtomicInteger idGen = new AtomicInteger(0);
+    private final Shard[] shards;
+    private final BodyStore bodies = new BodyStore(Paths.get(BODIES_DIR));
+    /**
+     * Letto da chi consegna, dalla scrittura del corpo alla consegna negli shard; scritto
+     * all'inizio di una compattazione, che così non vede corpi scritti e non ancora consegnati.
+     */
+    private final ReentrantReadWriteLock delivering = new ReentrantReadWriteLock();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
     private final Consumer<String> log;
+    /** Log per singola consegna (DEBUG), {@code null} se spento. */
+    private final Consumer<String> trace;
+    /** Corpi inline trovati al caricamento e spostati nel {@link BodyStore}. */
+    private int migrated;
+    /** Snapshot degli shard attuali in un formato precedente, riscritti dopo il caricamento. */
+    private int converted;
 
     private MailStore(Consumer<String> log) {
         this.log = (log == null) ? s -> {} : log;
+        this.trace = ServerLog.debugOf(log);
+        Durability durability = Durability.fromProperty();
+        int n = Math.max(1, Integer.getInteger(PROP_SHARDS, DEFAULT_SHARDS));
+        Path dir = Paths.get(SHARDS_PREFIX + n);
+        long budget = Math.max(0, Long.getLong(PROP_RESIDENT, DEFAULT_RESIDENT_MB)) * 1024 * 1024 / n;
+        this.shards = new Shard[n];
+        for (int k = 0; k < n; k++) shards[k] = new Shard(k, dir, boxes, bodies, durability, budget, this.log);
         try {
             log.accept("Working dir: " + System.getProperty("user.dir"));
+            Files.createDirectories(dir);
+            bodies.open();
             loadAccounts();
-            loadMails();
+            long start = System.nanoTime();
+            List<Path> previous = loadPrevious(n);
+            loadShards(n);
+            this.log.accept("Archivio caricato: " + Arrays.stream(shards).mapToInt(Shard::messages).sum()
+                    + " messaggi in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            if (migrated > 0 || converted > 0 || !previous.isEmpty()) {
+                // corpi inline spostati in bodies/, shard ridistribuiti o snapshot testuali: si riscrivono
+                start = System.nanoTime();
+                for (Shard shard : shards) shard.compact();
+                for (Path old : previous) retire(old);
+                if (migrated > 0) this.log.accept("Corpi spostati su disco: " + migrated);
+                if (converted > 0) this.log.accept("Snapshot convertiti in sezioni per utente: " + converted);
+                if (!previous.isEmpty()) this.log.accept("Dati convertiti in " + n + " shard binari da " + previous
+                        + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+            this.log.accept("Durabilità journal: " + durability + ", " + n + " shard");
+            sweepBodiesLater();
         } catch (IOException e) {
             this.log.accept("Errore caricamento dati: " + e.getMessage());
         }
@@ -62,65 +141,401 @@ public class MailStore {
         return idGen.incrementAndGet();
     }
 
-    /** Inserisce un messaggio nella inbox del destinatario. */
-    public void addEmail(String recipient, Email email) {
-        String r = norm(recipient);
-        if (!userExists(r)) throw new IllegalArgumentException("Unknown recipient: " + recipient);
-        boxes.get(r).add(email);
-        saveData();
-        log.accept("Nuova email per " + r + " [id=" + email.getId() + "]");
+    /**
+     * Consegna un messaggio a tutti i suoi destinatari, memorizzandolo una sola volta.
+     * Ritorna solo quando il record è durevole secondo la {@link Durability} scelta.
+     *
+     * @throws UncheckedIOException se il corpo o il record non sono stati salvati
+     */
+    public void addEmail(Email email) {
+        checkFields(email);
+        List<String> rcpt = email.getTo().stream().map(this::norm).distinct().toList();
+        for (String r : rcpt) {
+            if (!userExists(r)) throw new IllegalArgumentException("Unknown recipient: " + r);
+        }
+        if (rcpt.isEmpty()) return;
+        Map<Shard, List<String>> byShard = group(rcpt);
+        List<CompletableFuture<Void>> durable = new ArrayList<>(byShard.size());
+        delivering.readLock().lock();
+        try {
+            StoredEmail stored;
+            try {
+                // corpo su disco prima di prendere il lock: solo intestazioni in memoria
+                byte[] body64 = Base64.getEncoder().encode(email.getBody().getBytes(StandardCharsets.UTF_8));
+                stored = new StoredEmail(email, bodies, bodies.append(body64));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Errore salvataggio corpo", e);
+            }
+            String line = toLine(stored);
+            lock(byShard.keySet());
+            try {
+                for (Map.Entry<Shard, List<String>> e : byShard.entrySet()) {
+                    e.getKey().deliver(stored, e.getValue());
+                    durable.add(e.getKey().persist(MailJournal.REC_ADD + ";" + line));
+                }
+            } finally {
+                unlock(byShard.keySet());
+            }
+        } finally {
+            delivering.readLock().unlock();
+        }
+        durable.forEach(this::awaitDurable);
+        signal(rcpt);
+        if (trace != null) trace.accept("Nuova email per " + String.join(",", rcpt) + " [id=" + email.getId() + "]");
+    }
+
+    /**
+     * Consegna un gruppo di messaggi come un'unica modifica: un solo record nel journal
+     * e una sola attesa di durabilità. Se un destinatario non esiste non viene consegnato nulla.
+     *
+     * @param batch messaggi con id già assegnati
+     * @throws UncheckedIOException se i corpi o il record non sono stati salvati
+     */
+    public void addEmails(List<Email> batch) {
+        List<List<String>> rcpts = new ArrayList<>(batch.size());
+        for (Email email : batch) {
+            checkFields(email);
+            List<String> rcpt = email.getTo().stream().map(this::norm).distinct().toList();
+            for (String r : rcpt) {
+                if (!userExists(r)) throw new IllegalArgumentException("Unknown recipient: " + r);
+            }
+            rcpts.add(rcpt);
+        }
+        List<byte[]> bodies64 = new ArrayList<>(batch.size());
+        for (Email email : batch) {
+            bodies64.add(Base64.getEncoder().encode(email.getBody().getBytes(StandardCharsets.UTF_8)));
+        }
+        List<StoredEmail> stored = new ArrayList<>(batch.size());
+        Set<String> touched = new LinkedHashSet<>();
+        int n = 0;
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        delivering.readLock().lock();
+        try {
+            try {
+                List<BodyStore.Ref> refs = bodies.appendAll(bodies64);
+                for (int i = 0; i < batch.size(); i++) stored.add(new StoredEmail(batch.get(i), bodies, refs.get(i)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Errore salvataggio corpo", e);
+            }
+            // per ogni shard le righe dei messaggi che lo riguardano, in un unico record
+            List<Map<Shard, List<String>>> groups = new ArrayList<>(stored.size());
+            Map<Shard, StringJoiner> lines = new TreeMap<>(Comparator.comparingInt((Shard sh) -> sh.index));
+            Map<Shard, Integer> counts = new HashMap<>();
+            for (int i = 0; i < stored.size(); i++) {
+                Map<Shard, List<String>> g = group(rcpts.get(i));
+                String line = g.isEmpty() ? null : toLine(stored.get(i));
+                groups.add(g);
+                for (Shard sh : g.keySet()) {
+                    lines.computeIfAbsent(sh, k -> new StringJoiner(BATCH_SEP)).add(line);
+                    counts.merge(sh, 1, Integer::sum);
+                }
+                touched.addAll(rcpts.get(i));
+                if (!g.isEmpty()) n++;
+            }
+            if (n == 0) return;
+            lock(lines.keySet());
+            try {
+                for (int i = 0; i < stored.size(); i++) {
+                    for (Map.Entry<Shard, List<String>> e : groups.get(i).entrySet()) {
+                        e.getKey().deliver(stored.get(i), e.getValue());
+                    }
+                }
+                for (Map.Entry<Shard, StringJoiner> e : lines.entrySet()) {
+                    Shard sh = e.getKey();
+                    durable.add(sh.persist(MailJournal.REC_ADD_BATCH + ";" + counts.get(sh) + ";" + e.getValue()));
+                }
+            } finally {
+                unlock(lines.keySet());
+            }
+        } finally {
+            delivering.readLock().unlock();
+        }
+        durable.forEach(this::awaitDurable);
+        signal(touched);
+        if (trace != null) trace.accept("Consegnate " + n + " email a " + touched.size() + " utenti");
+    }
+
+    /**
+     * Come {@link #userExists}, e in più carica la inbox dell'utente: al LOGIN segue quasi
+     * sempre un GET.
+     */
+    public boolean open(String user) {
+        String u = norm(user);
+        if (!userExists(u)) return false;
+        inbox(u);
+        return true;
     }
 
     /** Restituisce i messaggi con id > lastId. */
     public List<Email> getEmailsAfter(String user, int lastId) {
         String u = norm(user);
         if (!userExists(u)) return List.of();
-        List<Email> inbox = boxes.get(u);
-        synchronized (inbox) {
-            List<Email> res = new ArrayList<>();
-            for (Email e : inbox) if (e.getId() > lastId) res.add(e);
-            return res;
+        return inbox(u).after(lastId);
+    }
+
+    /**
+     * Iteratore pigro sui messaggi con id > lastId, in ordine di id.
+     * Non copia la inbox: pensato per inviare i messaggi direttamente sul socket.
+     */
+    public Iterator<Email> emailsAfter(String user, int lastId) {
+        String u = norm(user);
+        if (!userExists(u)) return Collections.emptyIterator();
+        return inbox(u).iterator(lastId);
+    }
+
+    /**
+     * Come {@link #emailsAfter}, ma se non ci sono messaggi nuovi attende
+     * la prossima consegna all'utente per al massimo {@code timeoutMillis}.
+     *
+     * @return iteratore sui messaggi con id > lastId (vuoto se scade il timeout)
+     */
+    public Iterator<Email> awaitEmailsAfter(String user, int lastId, long timeoutMillis) throws InterruptedException {
+        String u = norm(user);
+        if (!userExists(u)) return Collections.emptyIterator();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            Inbox inbox = inbox(u);
+            Iterator<Email> res = inbox.iterator(lastId);
+            long left = deadline - System.nanoTime();
+            if (res.hasNext() || left <= 0) return res;
+
+            CompletableFuture<Void> arrived = inbox.watch(lastId);
+            try {
+                // scaricata prima della registrazione: le consegne vanno alla nuova inbox
+                if (boxes.get(u) != inbox) continue;
+                arrived.get(left, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return Collections.emptyIterator();
+            } catch (ExecutionException e) {
+                // mai completato con errore
+            } finally {
+                inbox.unwatch(arrived);
+            }
+            return inbox.iterator(lastId);
         }
     }
 
-    /** Cancella un messaggio dalla inbox. */
+    /**
+     * Messaggi con id > lastId che contengono tutti i termini di {@code query} in oggetto, corpo
+     * o mittente ({@code term*} per prefisso), in ordine di id. Alla prima ricerca l'indice
+     * dell'utente è letto da disco o ricostruito, poi lo aggiornano consegne e cancellazioni.
+     *
+     * @return iteratore vuoto se la query non contiene termini utili
+     */
+    public Iterator<Email> search(String user, String query, int lastId) {
+        String u = norm(user);
+        if (!userExists(u)) return Collections.emptyIterator();
+        List<String> terms = SearchIndex.parse(query);
+        if (terms.isEmpty()) return Collections.emptyIterator();
+        Inbox b = boxes.get(u);
+        if (b == null || !b.indexed()) b = shardOf(u).searchable(u);
+        b.touch();
+        return b.search(terms, lastId);
+    }
+
+    /** @return messaggio con quell'id nella inbox dell'utente, {@code null} se assente */
+    public Email getEmail(String user, int id) {
+        String u = norm(user);
+        if (!userExists(u)) return null;
+        return inbox(u).get(id);
+    }
+
+    /**
+     * @return corpo in Base64 così com'è memorizzato, senza ricodificarlo: per i messaggi
+     *         archiviati è una vista sulla mappatura del segmento, non una copia
+     */
+    public ByteBuffer bodyBytes(Email e) {
+        if (e instanceof StoredEmail s) {
+            try {
+                return bodies.slice(s.ref());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return ByteBuffer.wrap(Base64.getEncoder().encode(e.getBody().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Occupazione di una inbox.
+     *
+     * @param user     indirizzo
+     * @param messages messaggi presenti
+     * @param bytes    byte dei corpi, come memorizzati (Base64)
+     */
+    public record InboxStats(String user, int messages, long bytes) {}
+
+    /** @return occupazione di tutte le inbox, in ordine di indirizzo, senza caricarle */
+    public List<InboxStats> inboxStats() {
+        List<InboxStats> res = new ArrayList<>(accounts.size());
+        for (String u : accounts) res.add(shardOf(u).stats(u));
+        res.sort(Comparator.comparing(InboxStats::user));
+        return res;
+    }
+
+    /**
+     * Cancella un messaggio dalla inbox.
+     *
+     * @throws UncheckedIOException se il record non è stato salvato
+     */
     public boolean deleteEmail(String user, int id) {
         String u = norm(user);
         if (!userExists(u)) return false;
-        List<Email> inbox = boxes.get(u);
-        boolean removed;
-        synchronized (inbox) {
-            removed = inbox.removeIf(e -> e.getId() == id);
+        Shard shard = shardOf(u);
+        CompletableFuture<Void> durable;
+        shard.writeLock.lock();
+        try {
+            if (!shard.undeliver(u, id)) return false;
+            durable = shard.persist(MailJournal.REC_DELETE + ";" + u + ";" + id);
+        } finally {
+            shard.writeLock.unlock();
         }
-        if (removed) saveData();
-        return removed;
+        awaitDurable(durable);
+        if (bodies.wasteful()) sweepBodiesLater();
+        return true;
     }
 
-    /** Salva lo stato su file. */
-    private void saveData() {
+    /**
+     * Cancella più messaggi dalla inbox come un'unica modifica (un solo record nel journal).
+     * Gli id non presenti vengono ignorati.
+     *
+     * @return numero di messaggi cancellati
+     * @throws UncheckedIOException se il record non è stato salvato
+     */
+    public int deleteEmails(String user, Collection<Integer> ids) {
+        String u = norm(user);
+        if (!userExists(u)) return 0;
+        Shard shard = shardOf(u);
+        StringJoiner removed = new StringJoiner(",");
+        int n = 0;
+        CompletableFuture<Void> durable;
+        shard.writeLock.lock();
         try {
-            saveAccounts();
-            saveMails();
-        } catch (IOException e) {
-            log.accept("Errore salvataggio dati: " + e.getMessage());
+            for (int id : ids) {
+                if (!shard.undeliver(u, id)) continue;
+                removed.add(String.valueOf(id));
+                n++;
+            }
+            if (n == 0) return 0;
+            durable = shard.persist(MailJournal.REC_DELETE_BATCH + ";" + u + ";" + n + ";" + removed);
+        } finally {
+            shard.writeLock.unlock();
+        }
+        awaitDurable(durable);
+        if (bodies.wasteful()) sweepBodiesLater();
+        return n;
+    }
+
+    /** Avvia {@link #sweepBodies} in background, se non è già in corso. */
+    private void sweepBodiesLater() {
+        if (!sweeping.compareAndSet(false, true)) return;
+        Thread.ofVirtual().name("body-compaction").start(() -> {
+            try {
+                sweepBodies();
+            } catch (IOException | UncheckedIOException e) {
+                log.accept("⚠️ Compattazione dei corpi fallita: " + e.getMessage());
+            } finally {
+                sweeping.set(false);
+            }
+            // cancellazioni arrivate durante la compattazione
+            if (bodies.wasteful()) sweepBodiesLater();
+        });
+    }
+
+    /**
+     * Compatta il {@link BodyStore}: fissati i segmenti candidati, ogni shard segnala i corpi
+     * ancora nelle sue inbox e i segmenti con pochi corpi vivi vengono riscritti. I corpi
+     * consegnati dopo sono in segmenti più recenti, quelli cancellati nel frattempo restano
+     * vivi fino alla prossima volta.
+     */
+    private void sweepBodies() throws IOException {
+        long start = System.nanoTime();
+        BodyStore.Live live;
+        delivering.writeLock().lock();
+        try {
+            live = bodies.live();
+        } finally {
+            delivering.writeLock().unlock();
+        }
+        for (Shard shard : shards) shard.liveBodies(live::add);
+        long[] freed = bodies.compact(live);
+        if (freed[0] > 0) {
+            log.accept("Corpi compattati: " + freed[0] + " segmenti, " + freed[1] / (1024 * 1024) + " MB liberati in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+
+    /** @return inbox residente dell'utente (indirizzo normalizzato), caricata se serve */
+    private Inbox inbox(String user) {
+        Inbox b = boxes.get(user);
+        if (b == null) b = shardOf(user).inbox(user);
+        b.touch();
+        return b;
+    }
+
+    /** Risveglia i WATCH dei destinatari residenti (gli altri non ne hanno). */
+    private void signal(Collection<String> users) {
+        for (String r : users) {
+            Inbox b = boxes.get(r);
+            if (b != null) b.signal();
+        }
+    }
+
+    /** @return shard dell'utente (indirizzo normalizzato) */
+    private Shard shardOf(String user) {
+        return shards[shardIndex(user, shards.length)];
+    }
+
+    /** Indice dello shard di {@code user} su {@code n}: dipende solo dall'indirizzo, non dalla JVM. */
+    static int shardIndex(String user, int n) {
+        int h = user.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), n);
+    }
+
+    /** @return destinatari raggruppati per shard, in ordine di indice (l'ordine dei lock) */
+    private Map<Shard, List<String>> group(List<String> users) {
+        if (users.size() == 1) return Map.of(shardOf(users.get(0)), users);
+        Map<Shard, List<String>> res = new TreeMap<>(Comparator.comparingInt((Shard sh) -> sh.index));
+        for (String u : users) res.computeIfAbsent(shardOf(u), k -> new ArrayList<>()).add(u);
+        return res;
+    }
+
+    /** Prende i lock degli shard in ordine di indice, così due consegne non si bloccano a vicenda. */
+    private static void lock(Collection<Shard> ordered) {
+        for (Shard sh : ordered) sh.writeLock.lock();
+    }
+
+    private static void unlock(Collection<Shard> ordered) {
+        for (Shard sh : ordered) sh.writeLock.unlock();
+    }
+
+    /**
+     * Attende (fuori dal lock) che il batch contenente il record sia stato scritto.
+     *
+     * @throws UncheckedIOException se la scrittura o la sincronizzazione del journal è
+     *         fallita: la modifica non è durevole e al client non va risposto OK
+     */
+    private void awaitDurable(CompletableFuture<Void> durable) {
+        try {
+            durable.join();
+        } catch (CompletionException e) {
+            log.accept("Errore salvataggio dati: " + e.getCause().getMessage());
+            throw new UncheckedIOException("Errore salvataggio dati",
+                    e.getCause() instanceof IOException io ? io : new IOException(e.getCause()));
         }
     }
 
     private void loadAccounts() throws IOException {
         Path path = Paths.get(ACCOUNTS_FILE);
-        accounts.clear();
-        boxes.clear();
+        Set<String> loaded = new HashSet<>();
 
         try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
             String line;
             while ((line = br.readLine()) != null) {
                 String email = norm(line);
-                if (!email.isEmpty()) {
-                    accounts.add(email);
-                    boxes.put(email, Collections.synchronizedList(new ArrayList<>()));
-                }
+                if (!email.isEmpty()) loaded.add(email);
             }
         }
+        accounts = Set.copyOf(loaded);
         if (accounts.isEmpty()) {
             log.accept("Nessun account presente in " + ACCOUNTS_FILE);
         }
@@ -139,51 +554,249 @@ public class MailStore {
         Files.move(tmp, Paths.get(ACCOUNTS_FILE), REPLACE_EXISTING);
     }
 
-    private void loadMails() throws IOException {
-        Path path = Paths.get(MAILS_FILE);
-        if (!Files.exists(path)) {
-            log.accept("Nessun file mails.txt, inbox vuote.");
-            return;
+    /**
+     * Apre gli snapshot degli shard in parallelo (solo gli indici: le inbox si caricano al
+     * primo accesso), poi riapplica i journal in ordine.
+     */
+    private void loadShards(int n) throws IOException {
+        try {
+            int maxId = Arrays.stream(shards).parallel().mapToInt(shard -> {
+                try {
+                    return shard.open();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).max().orElse(0);
+            idGen.accumulateAndGet(maxId, Math::max);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                Email e = Email.fromString(line);
-                for (String r : e.getTo()) {
-                    if (accounts.contains(r)) {
-                        boxes.get(r).add(e);
-                        idGen.set(Math.max(idGen.get(), e.getId()));
+        for (Shard shard : shards) {
+            int k = shard.index;
+            replayJournal(shard.journal(), u -> shardIndex(u, n) == k);
+        }
+    }
+
+    /**
+     * Carica i dati scritti in un formato o una disposizione diversi da quelli attuali:
+     * mails.txt/mails.log senza shard, le cartelle shards-M con M diverso da {@code n} e gli
+     * snapshot testuali {@code mails-K.txt} degli shard attuali. Ogni file contiene solo gli utenti
+     * del proprio shard di origine; i messaggi finiscono negli shard attuali dei loro holders.
+     *
+     * @return file e cartelle caricati, da mettere da parte dopo la riscrittura degli snapshot
+     */
+    private List<Path> loadPrevious(int n) throws IOException {
+        List<Path> found = new ArrayList<>();
+        for (Shard shard : shards) {
+            // il journal dello shard segue lo snapshot testuale o di versione 1: è riapplicato
+            // dopo, con gli snapshot attuali
+            int k = shard.index;
+            Path bin = shard.snapshotPath();
+            if (Files.exists(bin) && MailSnapshot.version(bin) == MailSnapshot.VERSION_MESSAGES) {
+                load(bin, null, u -> shardIndex(u, n) == k);
+                converted++;
+                continue;
+            }
+            Path text = shard.textSnapshot();
+            if (!Files.exists(text)) continue;
+            load(text, null, u -> shardIndex(u, n) == k);
+            found.add(text);
+        }
+        Path legacy = Paths.get(MAILS_FILE), legacyLog = Paths.get(JOURNAL_FILE);
+        if (Files.exists(legacy) || Files.exists(legacyLog)) {
+            load(legacy, new MailJournal(legacyLog, Durability.OS, 0, log, bodies), u -> true);
+            if (Files.exists(legacy)) found.add(legacy);
+            if (Files.exists(legacyLog)) found.add(legacyLog);
+        }
+        List<Path> dirs;
+        try (var files = Files.list(Paths.get("."))) {
+            dirs = files.filter(Files::isDirectory)
+                    .filter(p -> p.getFileName().toString().matches(SHARDS_PREFIX + "\\d+"))
+                    .toList();
+        }
+        for (Path dir : dirs) {
+            int m = Integer.parseInt(dir.getFileName().toString().substring(SHARDS_PREFIX.length()));
+            if (m == n || m <= 0) continue;
+            for (int j = 0; j < m; j++) {
+                int k = j;
+                Path bin = dir.resolve("mails-" + j + ".bin");
+                load(Files.exists(bin) ? bin : dir.resolve("mails-" + j + ".txt"),
+                        new MailJournal(dir.resolve("mails-" + j + ".log"), Durability.OS, 0, log, bodies),
+                        u -> shardIndex(u, m) == k);
+            }
+            found.add(dir);
+        }
+        return found;
+    }
+
+    /** Mette da parte un file o una cartella già ridistribuiti, senza sovrascrivere un {@code .old} esistente. */
+    private static void retire(Path old) throws IOException {
+        Path target = old.resolveSibling(old.getFileName() + ".old");
+        for (int i = 1; Files.exists(target); i++) target = old.resolveSibling(old.getFileName() + ".old" + i);
+        Files.move(old, target);
+    }
+
+    /**
+     * Carica tutto uno snapshot (binario se {@code .bin}, altrimenti testuale) e riapplica il journal
+     * successivo, se indicato.
+     *
+     * @param owns utenti di cui il file di origine è responsabile: gli altri holders si ignorano
+     */
+    private void load(Path snapshot, MailJournal journal, Predicate<String> owns) {
+        if (Files.exists(snapshot) && snapshot.getFileName().toString().endsWith(".bin")) {
+            try {
+                if (MailSnapshot.version(snapshot) == MailSnapshot.VERSION_MESSAGES) {
+                    MailSnapshot.readMessages(snapshot, bodies, e -> {
+                        List<String> holders = e.holders().stream().filter(accounts::contains).filter(owns).toList();
+                        for (Map.Entry<Shard, List<String>> g : group(holders).entrySet()) {
+                            g.getKey().deliver(e.email(), g.getValue());
+                        }
+                        idGen.accumulateAndGet(e.email().getId(), Math::max);
+                    });
+                } else {
+                    try (MailSnapshot old = MailSnapshot.open(snapshot, bodies)) {
+                        for (String u : old.sections().keySet()) {
+                            if (!accounts.contains(u) || !owns.test(u)) continue;
+                            for (StoredEmail e : old.read(u)) shardOf(u).deliver(e, List.of(u));
+                        }
+                        idGen.accumulateAndGet(old.maxId(), Math::max);
                     }
                 }
+            } catch (IOException e) {
+                log.accept("⚠️ Errore caricamento " + snapshot + ": " + e.getMessage());
+            }
+        } else if (Files.exists(snapshot)) {
+            try (BufferedReader br = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    parseStored(line, owns).run();
+                }
+            } catch (Exception e) {
+                log.accept("⚠️ Errore caricamento " + snapshot + ": " + e.getMessage());
             }
-            log.accept("Email caricate da file.");
-        } catch (Exception e) {
-            log.accept("⚠️ Errore caricamento mail: " + e.getMessage());
         }
+        if (journal != null) replayJournal(journal, owns);
     }
 
-    private void saveMails() throws IOException {
-        Path tmp = Paths.get(MAILS_FILE + ".tmp");
-        try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8,
-                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            for (var entry : boxes.entrySet()) {
-                List<Email> inbox = entry.getValue();
-                synchronized (inbox) {
-                    for (Email e : inbox) {
-                        String id     = String.valueOf(e.getId());
-                        String from   = e.getFrom();
-                        String toCsv  = String.join(",", e.getTo()); // qui è una lista con un solo destinatario
-                        String subj64 = Base64.getEncoder().encodeToString(e.getSubject().getBytes(StandardCharsets.UTF_8));
-                        String body64 = Base64.getEncoder().encodeToString(e.getBody().getBytes(StandardCharsets.UTF_8));
-                        String date   = e.getDate().format(DATE_FMT);
-
-                        bw.write(String.join(";", id, from, toCsv, subj64, body64, date));
-                        bw.newLine();
+    /** Riapplica le modifiche registrate nel journal dopo l'ultimo snapshot. */
+    private void replayJournal(MailJournal journal, Predicate<String> owns) {
+        try {
+            int n = journal.replay(rec -> {
+                try {
+                    String[] p = rec.split(";", 2);
+                    switch (p[0]) {
+                        case MailJournal.REC_ADD -> parseStored(p[1], owns).run();
+                        case MailJournal.REC_DELETE -> {
+                            String[] d = p[1].split(";");
+                            undeliver(d[0], Integer.parseInt(d[1]));
+                        }
+                        case MailJournal.REC_ADD_BATCH -> {
+                            // tutto o niente: un record troncato non applica nessun messaggio
+                            String[] b = p[1].split(";", 2);
+                            String[] lines = b[1].split(BATCH_SEP);
+                            checkCount(b[0], lines.length);
+                            List<Runnable> apply = new ArrayList<>(lines.length);
+                            for (String l : lines) apply.add(parseStored(l, owns));
+                            apply.forEach(Runnable::run);
+                        }
+                        case MailJournal.REC_DELETE_BATCH -> {
+                            String[] d = p[1].split(";");
+                            String[] ids = d[2].split(",");
+                            checkCount(d[1], ids.length);
+                            for (String id : ids) undeliver(d[0], Integer.parseInt(id));
+                        }
+                        default -> log.accept("Record journal sconosciuto: " + rec);
                     }
+                } catch (Exception e) {
+                    // tipicamente l'ultima riga troncata da un crash
+                    log.accept("⚠️ Record journal ignorato: " + e.getMessage());
                 }
+            });
+            if (n > 0) log.accept("Journal riapplicato: " + n + " record.");
+        } catch (IOException e) {
+            log.accept("⚠️ Errore lettura journal: " + e.getMessage());
+        }
+    }
+
+    /** Cancellazione durante il caricamento (un solo thread, senza lock). */
+    private void undeliver(String user, int id) {
+        String u = norm(user);
+        if (accounts.contains(u)) shardOf(u).undeliver(u, id);
+    }
+
+    private static void checkCount(String declared, int found) {
+        if (Integer.parseInt(declared) != found) {
+            throw new IllegalArgumentException("Record batch troncato: " + found + " elementi su " + declared);
+        }
+    }
+
+    /**
+     * Interpreta una riga di snapshot o di journal e restituisce la consegna da eseguire.
+     * Il campo holdersCsv è facoltativo: se manca (righe di journal, o scritte prima
+     * dell'archivio condiviso) valgono i destinatari. Un corpo ancora inline in Base64
+     * viene spostato nel {@link BodyStore}.
+     */
+    private Runnable parseStored(String line, Predicate<String> owns) throws IOException {
+        String[] p = line.split(";", -1);
+        if (p.length < 6) throw new IllegalArgumentException("Formato Email non valido: " + line);
+        List<String> holders = p.length > 6 ? Arrays.asList(p[6].split(",")) : null;
+        Email head = new Email(
+                Integer.parseInt(p[0]),
+                p[1],
+                Arrays.asList(p[2].split(",")),
+                new String(Base64.getDecoder().decode(p[3]), StandardCharsets.UTF_8),
+                null,
+                LocalDateTime.parse(p[5], DATE_FMT));
+        BodyStore.Ref ref;
+        if (BodyStore.Ref.isRef(p[4])) {
+            ref = BodyStore.Ref.parse(p[4]);
+        } else {
+            ref = bodies.append(p[4].getBytes(StandardCharsets.US_ASCII));
+            migrated++;
+        }
+        Email e = new StoredEmail(head, bodies, ref);
+        List<String> rcpt = (holders == null ? e.getTo() : holders).stream()
+                .map(this::norm)
+                .filter(accounts::contains)
+                .filter(owns)
+                .distinct()
+                .toList();
+        return () -> {
+            for (Map.Entry<Shard, List<String>> g : group(rcpt).entrySet()) g.getKey().deliver(e, g.getValue());
+            idGen.accumulateAndGet(e.getId(), Math::max);
+        };
+    }
+
+    /** Riga di persistenza: id;from;toCsv;base64(subject);@seg:off:len;ISO_LOCAL_DATE_TIME */
+    /**
+     * Mittente e destinatari vanno nel record così come sono (oggetto e corpo in Base64):
+     * un separatore o un carattere di controllo renderebbe il record illeggibile al riavvio,
+     * perdendo messaggi già confermati.
+     */
+    private static void checkFields(Email e) {
+        checkField("sender", e.getFrom());
+        for (String r : e.getTo()) checkField("recipient", r);
+    }
+
+    private static void checkField(String what, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < ' ' || c == 0x7f || c == ';' || c == ',') {
+                throw new IllegalArgumentException("Invalid " + what + ": " + s.replaceAll("\\p{Cntrl}", "?"));
             }
         }
-        Files.move(tmp, Paths.get(MAILS_FILE), REPLACE_EXISTING);
+    }
+
+    private static String toLine(Email e) {
+        String id     = String.valueOf(e.getId());
+        String from   = e.getFrom();
+        String toCsv  = String.join(",", e.getTo());
+        String subj64 = Base64.getEncoder().encodeToString(e.getSubject().getBytes(StandardCharsets.UTF_8));
+        String body64 = (e instanceof StoredEmail s)
+                ? s.ref().encode()
+                : Base64.getEncoder().encodeToString(e.getBody().getBytes(StandardCharsets.UTF_8));
+        String date   = e.getDate().format(DATE_FMT);
+        return String.join(";", id, from, toCsv, subj64, body64, date);
     }
 
 
@@ -0,0 +1,281 @@
+package it.unito.prog3.mailserver.store;
+
+import shared.Email;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Indice invertito della inbox di un utente: per ogni termine di oggetto, corpo e mittente
+ * gli id dei messaggi che lo contengono.
+ * <p>Le liste di id sono array di {@code int} ordinati, con la lunghezza usata nel primo
+ * elemento: niente oggetti per messaggio, e l'aggiunta di un id più alto (il caso normale)
+ * è una scrittura in coda. I termini stanno in una mappa ordinata per le ricerche per
+ * prefisso ({@code term*}).</p>
+ * <p>Una cancellazione non tocca le liste (per i termini comuni vorrebbe dire spostare
+ * milioni di id): l'id finisce tra i cancellati, salvati con l'indice, e resta nelle liste
+ * finché la inbox non chiama {@link #purge}; nel frattempo la ricerca lo scarta perché il
+ * messaggio non c'è più.</p>
+ * <p>Non è thread-safe: lo modifica e lo interroga la {@link Inbox} sotto il proprio lock.</p>
+ */
+final class SearchIndex {
+
+    /** Termini più corti sono ignorati, più lunghi troncati. */
+    static final int MIN_TERM = 2;
+    static final int MAX_TERM = 32;
+    /** Stima dell'heap per termine: voce della mappa, stringa e array. */
+    private static final int TERM_OVERHEAD = 40 + 48 + 16;
+
+    private final TreeMap<String, int[]> postings = new TreeMap<>();
+    private long heap = 16 + 4 * 8;
+    /** Id cancellati ma ancora nelle liste, nei primi {@code stale} elementi. */
+    private int[] staleIds = new int[8];
+    private int stale;
+    /** Id più alto indicizzato: solo un id non maggiore può essere tra i cancellati. */
+    private int maxId;
+
+    /** Indicizza un messaggio (nulla se è già presente). */
+    void add(Email e) {
+        int id = e.getId();
+        if (id <= maxId && stale > 0) unstale(id);
+        maxId = Math.max(maxId, id);
+        for (String t : terms(e)) {
+            int[] p = postings.get(t);
+            if (p == null) {
+                p = new int[4];
+                postings.put(t, p);
+                heap += TERM_OVERHEAD + 2L * t.length() + 4L * p.length;
+            }
+            int n = p[0];
+            int at = (n == 0 || id > p[n]) ? n + 1 : Arrays.binarySearch(p, 1, n + 1, id);
+            if (at > 0 && at <= n) continue; // già presente
+            if (at < 0) at = -at - 1;
+            if (n + 1 == p.length) {
+                heap += 4L * p.length;
+                p = Arrays.copyOf(p, p.length * 2);
+                postings.put(t, p);
+            }
+            System.arraycopy(p, at, p, at + 1, n + 1 - at);
+            p[at] = id;
+            p[0] = n + 1;
+        }
+    }
+
+    /** Registra un messaggio cancellato, che resta nelle liste fino al prossimo {@link #purge}. */
+    void deleted(int id) {
+        if (stale == staleIds.length) {
+            heap += 4L * staleIds.length;
+            staleIds = Arrays.copyOf(staleIds, staleIds.length * 2);
+        }
+        staleIds[stale++] = id;
+    }
+
+    /** @return messaggi cancellati ancora nelle liste */
+    int stale() {
+        return stale;
+    }
+
+    /** Un id cancellato e poi consegnato di nuovo (solo rileggendo il journal) torna valido. */
+    private void unstale(int id) {
+        for (int i = 0; i < stale; i++) {
+            if (staleIds[i] == id) staleIds[i--] = staleIds[--stale];
+        }
+    }
+
+    /** Toglie i cancellati da tutte le liste: un passaggio su tutto l'indice. */
+    void purge() {
+        if (stale == 0) return;
+        int[] gone = Arrays.copyOf(staleIds, stale);
+        Arrays.sort(gone);
+        Iterator<Map.Entry<String, int[]>> it = postings.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, int[]> en = it.next();
+            int[] p = en.getValue();
+            int w = 1;
+            for (int r = 1; r <= p[0]; r++) {
+                if (Arrays.binarySearch(gone, p[r]) < 0) p[w++] = p[r];
+            }
+            p[0] = w - 1;
+            if (p[0] == 0) {
+                it.remove();
+                heap -= TERM_OVERHEAD + 2L * en.getKey().length() + 4L * p.length;
+            }
+        }
+        stale = 0;
+    }
+
+    /**
+     * Messaggi che contengono tutti i termini della query; un termine che finisce con
+     * {@code *} vale per tutti quelli che iniziano così.
+     *
+     * @param query  termini già analizzati da {@link #parse}
+     * @param lastId si restituiscono solo gli id maggiori
+     * @return id in ordine crescente, compresi eventuali messaggi cancellati
+     */
+    int[] search(List<String> query, int lastId) {
+        List<int[]> lists = new ArrayList<>(query.size());
+        for (String q : query) {
+            int[] p = q.endsWith("*") ? prefix(q.substring(0, q.length() - 1)) : postings.get(q);
+            if (p == null || p[0] == 0) return new int[0];
+            lists.add(p);
+        }
+        // si parte dalla lista più corta e si cercano i suoi id nelle altre
+        lists.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] first = lists.get(0);
+        int from = Arrays.binarySearch(first, 1, first[0] + 1, lastId + 1);
+        if (from < 0) from = -from - 1;
+        int[] res = new int[first[0] + 1 - from];
+        int n = 0;
+        int[] pos = new int[lists.size()];
+        Arrays.fill(pos, 1);
+        candidates:
+        for (int i = from; i <= first[0]; i++) {
+            int id = first[i];
+            for (int k = 1; k < lists.size(); k++) {
+                int[] p = lists.get(k);
+                int at = Arrays.binarySearch(p, pos[k], p[0] + 1, id);
+                if (at < 0) {
+                    pos[k] = -at - 1;
+                    if (pos[k] > p[0]) break candidates;
+                    continue candidates;
+                }
+                pos[k] = at + 1;
+            }
+            res[n++] = id;
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /** Unione delle liste dei termini con quel prefisso, nello stesso formato. */
+    private int[] prefix(String p) {
+        Map<String, int[]> range = postings.subMap(p, true, p + Character.MAX_VALUE, false);
+        if (range.size() == 1) return range.values().iterator().next();
+        int total = 0;
+        for (int[] l : range.values()) total += l[0];
+        int[] all = new int[total];
+        int n = 0;
+        for (int[] l : range.values()) {
+            System.arraycopy(l, 1, all, n, l[0]);
+            n += l[0];
+        }
+        Arrays.sort(all);
+        int[] res = new int[total + 1];
+        int w = 0;
+        for (int i = 0; i < total; i++) {
+            if (w == 0 || all[i] != res[w]) res[++w] = all[i];
+        }
+        res[0] = w;
+        return res;
+    }
+
+    /** @return stima dei byte di heap occupati */
+    long heap() {
+        return heap;
+    }
+
+    /**
+     * Sezione su file: {@code int termini, termini × (str termine, int n, n × int id),
+     * int cancellati, cancellati × int id}. Le liste sono copiate in blocco.
+     */
+    ByteBuffer encode() {
+        List<byte[]> names = new ArrayList<>(postings.size());
+        long size = 4 + 4 + 4L * stale;
+        for (Map.Entry<String, int[]> e : postings.entrySet()) {
+            byte[] t = e.getKey().getBytes(StandardCharsets.UTF_8);
+            names.add(t);
+            size += 4 + t.length + 4 + 4L * e.getValue()[0];
+        }
+        if (size > Integer.MAX_VALUE) throw new IllegalStateException("Indice troppo grande");
+        ByteBuffer b = ByteBuffer.allocate((int) size);
+        b.putInt(postings.size());
+        int k = 0;
+        for (int[] p : postings.values()) {
+            byte[] t = names.get(k++);
+            b.putInt(t.length).put(t).putInt(p[0]);
+            b.asIntBuffer().put(p, 1, p[0]);
+            b.position(b.position() + 4 * p[0]);
+        }
+        b.putInt(stale);
+        b.asIntBuffer().put(staleIds, 0, stale);
+        return b.position(0);
+    }
+
+    /** Legge una sezione scritta da {@link #encode}. */
+    static SearchIndex read(ByteBuffer b) {
+        SearchIndex idx = new SearchIndex();
+        int terms = b.getInt();
+        for (int i = 0; i < terms; i++) {
+            byte[] t = new byte[b.getInt()];
+            b.get(t);
+            String term = new String(t, StandardCharsets.UTF_8);
+            int n = b.getInt();
+            int[] p = new int[n + 1];
+            p[0] = n;
+            b.asIntBuffer().get(p, 1, n);
+            b.position(b.position() + 4 * n);
+            idx.postings.put(term, p);
+            idx.heap += TERM_OVERHEAD + 2L * term.length() + 4L * p.length;
+            if (n > 0) idx.maxId = Math.max(idx.maxId, p[n]);
+        }
+        int stale = b.getInt();
+        idx.staleIds = new int[Math.max(8, stale)];
+        b.asIntBuffer().get(idx.staleIds, 0, stale);
+        b.position(b.position() + 4 * stale);
+        idx.stale = stale;
+        idx.heap += 4L * (idx.staleIds.length - 8);
+        return idx;
+    }
+
+    /** @return termini distinti di oggetto, corpo e mittente */
+    static Set<String> terms(Email e) {
+        Set<String> res = new LinkedHashSet<>();
+        tokenize(e.getSubject(), res, false);
+        tokenize(e.getBody(), res, false);
+        tokenize(e.getFrom(), res, false);
+        return res;
+    }
+
+    /**
+     * Analizza il testo di una ricerca con le stesse regole dei messaggi. Una parola che
+     * finisce con {@code *} diventa un prefisso (l'ultimo termine che produce lo conserva).
+     *
+     * @return termini distinti, vuota se non ce n'è nessuno utile
+     */
+    static List<String> parse(String query) {
+        Set<String> res = new LinkedHashSet<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (!word.isEmpty()) tokenize(word, res, word.endsWith("*"));
+        }
+        return new ArrayList<>(res);
+    }
+
+    /** Parole di lettere e cifre, in minuscolo. */
+    private static void tokenize(String text, Collection<String> out, boolean prefix) {
+        if (text == null) return;
+        int n = text.length();
+        String last = null;
+        for (int i = 0; i < n; ) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i - start < MIN_TERM) continue;
+            last = text.substring(start, Math.min(i, start + MAX_TERM)).toLowerCase(Locale.ROOT);
+            out.add(last);
+        }
+        if (prefix && last != null) {
+            // il prefisso sostituisce il termine esatto
+            out.remove(last);
+            out.add(last + "*");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package it.unito.prog3.mailserver.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Indici di ricerca di uno {@link Shard} su disco ({@code index-K.bin}), una sezione per utente
+ * scritta da {@link SearchIndex#encode}: come per {@link MailSnapshot} all'apertura si legge solo
+ * l'elenco delle sezioni.
+ * <p>Formato (big endian):</p>
+ * <pre>
+ * int magic, int versione, int utenti, long inizio dati
+ * utenti × (str utente, long offset, int lunghezza)
+ * sezioni
+ * </pre>
+ * <p>Viene riscritto alla compattazione, prima dello snapshot: un indice è quindi allineato
+ * allo snapshot o più recente, e riapplicarvi le modifiche del journal (aggiunte e
+ * cancellazioni di id) non cambia il risultato. Gli id cancellati di recente sono salvati
+ * con la sezione, così la compattazione non deve ripulire le liste. Un utente senza sezione
+ * ha l'indice ricostruito dai messaggi alla prima ricerca.</p>
+ */
+final class SearchSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x4D494458; // "MIDX"
+    static final int VERSION = 1;
+    private static final int FIXED_HEADER = 4 + 4 + 4 + 8;
+
+    /** Posizione della sezione di un utente. */
+    private record Section(long offset, int length) {}
+
+    private final Path path;
+    private final FileChannel ch;
+    private final Map<String, Section> sections;
+
+    private SearchSnapshot(Path path, FileChannel ch, Map<String, Section> sections) {
+        this.path = path;
+        this.ch = ch;
+        this.sections = sections;
+    }
+
+    /** Apre il file leggendone solo l'elenco delle sezioni. */
+    static SearchSnapshot open(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer fixed = read(ch, 0, FIXED_HEADER);
+            if (fixed.getInt() != MAGIC || fixed.getInt() != VERSION) {
+                throw new IOException("Indice non valido: " + path);
+            }
+            int users = fixed.getInt();
+            long dataStart = fixed.getLong();
+            if (dataStart > ch.size()) throw new IOException("Indice troncato: " + path);
+            ByteBuffer header = read(ch, FIXED_HEADER, (int) (dataStart - FIXED_HEADER));
+            Map<String, Section> sections = new HashMap<>(users * 2);
+            for (int i = 0; i < users; i++) {
+                byte[] u = new byte[header.getInt()];
+                header.get(u);
+                sections.put(new String(u, StandardCharsets.UTF_8), new Section(header.getLong(), header.getInt()));
+            }
+            return new SearchSnapshot(path, ch, sections);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e instanceof IOException io ? io : new IOException("Indice non valido: " + path + " (" + e + ")");
+        }
+    }
+
+    /** @return utenti con una sezione */
+    Set<String> users() {
+        return Collections.unmodifiableSet(sections.keySet());
+    }
+
+    /** @return indice di {@code user}, {@code null} se non ha una sezione */
+    SearchIndex read(String user) throws IOException {
+        Section s = sections.get(user);
+        if (s == null) return null;
+        try {
+            return SearchIndex.read(read(ch, s.offset(), s.length()));
+        } catch (RuntimeException e) {
+            throw new IOException("Indice di " + user + " non valido in " + path + " (" + e + ")");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    /**
+     * Scrive un nuovo file in {@code path}: gli indici in {@code rewritten} sono codificati,
+     * le sezioni di {@code old} copiate tranne quelle degli utenti in {@code dropped}.
+     *
+     * @param old file precedente, {@code null} se non c'è
+     */
+    static void write(Path path, SearchSnapshot old, Map<String, SearchIndex> rewritten, Set<String> dropped)
+            throws IOException {
+        TreeSet<String> users = new TreeSet<>(old == null ? Set.of() : old.sections.keySet());
+        users.removeAll(dropped);
+        users.addAll(rewritten.keySet());
+
+        long dataStart = FIXED_HEADER;
+        for (String u : users) dataStart += 4 + u.getBytes(StandardCharsets.UTF_8).length + 8 + 4;
+
+        Map<String, Section> written = new HashMap<>(users.size() * 2);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.position(dataStart);
+            for (String u : users) {
+                long offset = ch.position();
+                SearchIndex idx = rewritten.get(u);
+                if (idx == null) {
+                    Section s = old.sections.get(u);
+                    for (long done = 0; done < s.length(); ) {
+                        done += old.ch.transferTo(s.offset() + done, s.length() - done, ch);
+                    }
+                    written.put(u, new Section(offset, s.length()));
+                    continue;
+                }
+                ByteBuffer section = idx.encode();
+                written.put(u, new Section(offset, section.remaining()));
+                writeFully(ch, section);
+            }
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(1 << 16);
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(users.size());
+            out.writeLong(dataStart);
+            for (String u : users) {
+                Section s = written.get(u);
+                byte[] b = u.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+                out.writeLong(s.offset());
+                out.writeInt(s.length());
+            }
+            ch.position(0);
+            writeFully(ch, ByteBuffer.wrap(buf.toByteArray()));
+            ch.force(true);
+        }
+    }
+
+    /** Legge {@code length} byte da {@code offset} (lettura posizionale, sicura tra thread). */
+    private static ByteBuffer read(FileChannel ch, long offset, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (ch.read(b, offset + b.position()) < 0) throw new IOException("Indice troncato");
+        }
+        return b.flip();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+}
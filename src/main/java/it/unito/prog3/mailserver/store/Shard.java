@@ -0,0 +1,468 @@
+package it.unito.prog3.mailserver.store;
+
+import it.unito.prog3.mailserver.stats.Metrics;
+import shared.Email;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Partizione di {@link MailStore}: le inbox degli utenti assegnati a questo shard, con
+ * lock, journal e snapshot propri.
+ * <p>Le modifiche a utenti di shard diversi procedono in parallelo e la compattazione
+ * riscrive solo lo snapshot dello shard.</p>
+ * <p>Le inbox stanno su disco: lo snapshot ({@link MailSnapshot}) ha una sezione per utente
+ * e le modifiche successive sono nel journal e, in memoria, nei {@link Delta} per utente.
+ * Una inbox diventa residente al primo accesso di un client (sezione + delta) e viene
+ * scaricata, se non ha WATCH in corso, quando le residenti superano il budget dello shard
+ * in byte di heap stimati: si scaricano le meno usate di recente. Una consegna a un utente
+ * non residente aggiorna solo journal e delta.</p>
+ * <p>Le inbox residenti sono pubblicate anche nella mappa condivisa di {@link MailStore},
+ * letta senza lock; qui si modificano sotto {@link #writeLock}.</p>
+ * <p>Gli indici di ricerca seguono lo stesso schema: una sezione per utente in
+ * {@link SearchSnapshot}, caricata alla prima ricerca e portata al passo con il delta, e
+ * riscritta alla compattazione per i soli utenti modificati. L'indice caricato vive nella
+ * inbox residente e conta nel budget.</p>
+ */
+final class Shard {
+
+    /** Numero di record nel journal oltre il quale lo snapshot viene riscritto. */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    /** Modifiche alla inbox di un utente dall'ultimo snapshot, protette da {@link #writeLock}. */
+    private static final class Delta {
+        final Map<Integer, Email> added = new LinkedHashMap<>();
+        final Set<Integer> deleted = new HashSet<>();
+        int count;
+        long bytes;
+
+        void add(Email e) {
+            if (added.putIfAbsent(e.getId(), e) != null) return;
+            count++;
+            bytes += Inbox.sizeOf(e);
+        }
+
+        void remove(Email e) {
+            if (added.remove(e.getId()) == null) deleted.add(e.getId());
+            count--;
+            bytes -= Inbox.sizeOf(e);
+        }
+    }
+
+    final int index;
+    /** Serializza le modifiche dello shard: ordine in memoria e ordine nel journal coincidono. */
+    final ReentrantLock writeLock = new ReentrantLock();
+    /** Inbox residenti di tutti gli shard, lette senza lock. */
+    private final Map<String, Inbox> boxes;
+    /** Inbox residenti di questo shard. */
+    private final Map<String, Inbox> resident = new HashMap<>();
+    private final Map<String, Delta> dirty = new HashMap<>();
+    private final MailJournal journal;
+    private final Path snapshotPath;
+    /** Snapshot aperto, {@code null} finché non ne è stato scritto uno. */
+    private MailSnapshot snapshot;
+    private final Path indexPath;
+    /** Indici di ricerca su disco, {@code null} se non ancora scritti. */
+    private SearchSnapshot indexes;
+    /** Utenti con l'indice ricostruito dai messaggi, da scrivere alla compattazione. */
+    private final Set<String> rebuilt = new HashSet<>();
+    private final BodyStore bodies;
+    /** Byte di heap stimati per le inbox residenti; 0 = nessun limite. */
+    private final long budget;
+    private long residentHeap;
+    private int maxId;
+    private final Consumer<String> log;
+    private final Metrics metrics = Metrics.getInstance();
+
+    Shard(int index, Path dir, Map<String, Inbox> boxes, BodyStore bodies, Durability durability,
+          long budget, Consumer<String> log) {
+        this.index = index;
+        this.boxes = boxes;
+        this.bodies = bodies;
+        this.budget = budget;
+        this.log = log;
+        this.snapshotPath = dir.resolve("mails-" + index + ".bin");
+        this.indexPath = dir.resolve("index-" + index + ".bin");
+        this.journal = new MailJournal(dir.resolve("mails-" + index + ".log"), durability,
+                Durability.windowMillis(), log, bodies);
+    }
+
+    /** @return snapshot binario dello shard */
+    Path snapshotPath() {
+        return snapshotPath;
+    }
+
+    /** @return snapshot testuale delle versioni precedenti, da convertire */
+    Path textSnapshot() {
+        return snapshotPath.resolveSibling("mails-" + index + ".txt");
+    }
+
+    /** @return journal dello shard, da rileggere all'avvio */
+    MailJournal journal() {
+        return journal;
+    }
+
+    /**
+     * Apre lo snapshot leggendone solo l'indice. Uno snapshot di versione precedente è
+     * ignorato: {@link MailStore} lo ha già caricato e la compattazione lo sostituirà.
+     *
+     * @return id più alto nello snapshot (0 se nessuno)
+     */
+    int open() throws IOException {
+        writeLock.lock();
+        try {
+            if (Files.exists(indexPath)) {
+                try {
+                    indexes = SearchSnapshot.open(indexPath);
+                } catch (IOException e) {
+                    // si ricostruiscono alla prima ricerca
+                    log.accept("⚠️ Indici di ricerca ignorati: " + e.getMessage());
+                }
+            }
+            if (!Files.exists(snapshotPath) || MailSnapshot.version(snapshotPath) != MailSnapshot.VERSION) return 0;
+            snapshot = MailSnapshot.open(snapshotPath, bodies);
+            maxId = Math.max(maxId, snapshot.maxId());
+            return snapshot.maxId();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** @return messaggi nelle inbox dello shard (un messaggio a più destinatari conta per ognuno) */
+    int messages() {
+        writeLock.lock();
+        try {
+            int n = 0;
+            if (snapshot != null) {
+                for (MailSnapshot.Section s : snapshot.sections().values()) n += s.count();
+            }
+            for (Delta d : dirty.values()) n += d.count;
+            return n;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** @return occupazione della inbox di {@code user}, senza caricarla */
+    MailStore.InboxStats stats(String user) {
+        writeLock.lock();
+        try {
+            Inbox b = resident.get(user);
+            if (b != null) return new MailStore.InboxStats(user, b.count(), b.bytes());
+            MailSnapshot.Section s = snapshot == null ? null : snapshot.sections().get(user);
+            Delta d = dirty.get(user);
+            return new MailStore.InboxStats(user,
+                    (s == null ? 0 : s.count()) + (d == null ? 0 : d.count),
+                    (s == null ? 0 : s.bytes()) + (d == null ? 0 : d.bytes));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Inbox residente di {@code user}, caricata da disco se serve. Il caricamento può
+     * scaricare altre inbox dello shard per restare nel budget.
+     */
+    Inbox inbox(String user) {
+        writeLock.lock();
+        try {
+            Inbox b = resident.get(user);
+            if (b != null) return b;
+            long start = System.nanoTime();
+            b = materialize(user);
+            resident.put(user, b);
+            boxes.put(user, b);
+            long heap = b.heap();
+            residentHeap += heap;
+            metrics.resident(heap);
+            metrics.inboxLoad().recordSince(start);
+            evict(user);
+            return b;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Inbox residente di {@code user} con l'indice di ricerca caricato: dalla sezione su disco
+     * più il delta, oppure, se l'utente non ne ha una, dai messaggi.
+     */
+    Inbox searchable(String user) {
+        writeLock.lock();
+        try {
+            Inbox b = inbox(user);
+            if (b.indexed()) return b;
+            long start = System.nanoTime();
+            long before = b.heap();
+            SearchIndex idx = stored(user);
+            if (idx == null) {
+                idx = new SearchIndex();
+                for (Email e : b.after(0)) idx.add(e);
+                rebuilt.add(user);
+            }
+            b.index(idx);
+            long heap = b.heap() - before;
+            residentHeap += heap;
+            metrics.resident(heap);
+            metrics.indexLoad().recordSince(start);
+            evict(user);
+            return b;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Indice di {@code user} letto da disco e aggiornato con il delta, {@code null} se non
+     * ha una sezione (o non si legge).
+     */
+    private SearchIndex stored(String user) {
+        if (indexes == null) return null;
+        SearchIndex idx;
+        try {
+            idx = indexes.read(user);
+        } catch (IOException e) {
+            log.accept("⚠️ " + e.getMessage());
+            return null;
+        }
+        Delta d = dirty.get(user);
+        if (idx != null && d != null) {
+            d.deleted.forEach(idx::deleted);
+            d.added.values().forEach(idx::add);
+        }
+        return idx;
+    }
+
+    /** Ricostruisce la inbox da sezione dello snapshot e delta, senza renderla residente. */
+    private Inbox materialize(String user) {
+        Inbox b = new Inbox();
+        Delta d = dirty.get(user);
+        try {
+            if (snapshot != null) {
+                for (StoredEmail e : snapshot.read(user)) {
+                    if (d == null || !d.deleted.contains(e.getId())) b.add(e);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Errore caricamento inbox di " + user, e);
+        }
+        if (d != null) d.added.values().forEach(b::add);
+        return b;
+    }
+
+    /** Inbox candidata allo scaricamento, con l'ultimo accesso al momento della scelta. */
+    private record Idle(String user, Inbox inbox, long access) {}
+
+    /**
+     * Scarica le inbox usate meno di recente finché le residenti non scendono a 3/4 del
+     * budget (così non si scarica a ogni consegna). Restano quelle con WATCH in corso e
+     * {@code keep}, appena caricata.
+     */
+    private void evict(String keep) {
+        if (budget <= 0 || residentHeap <= budget) return;
+        // accesso letto una volta: i lettori lo aggiornano senza lock durante l'ordinamento
+        List<Idle> idle = new ArrayList<>();
+        for (Map.Entry<String, Inbox> e : resident.entrySet()) {
+            Inbox b = e.getValue();
+            if (!e.getKey().equals(keep) && !b.watched()) idle.add(new Idle(e.getKey(), b, b.lastAccess()));
+        }
+        idle.sort(Comparator.comparingLong(Idle::access));
+        for (Idle e : idle) {
+            if (residentHeap <= budget * 3 / 4) break;
+            boxes.remove(e.user(), e.inbox());
+            // WATCH registrata nel frattempo: chi la registra guarda boxes dopo, quindi
+            // o vede la rimozione e riprova, o la vediamo noi e la inbox resta
+            if (e.inbox().watched()) {
+                boxes.put(e.user(), e.inbox());
+                continue;
+            }
+            resident.remove(e.user());
+            rebuilt.remove(e.user());
+            long heap = e.inbox().heap();
+            residentHeap -= heap;
+            metrics.resident(-heap);
+            metrics.evicted();
+        }
+    }
+
+    /**
+     * Consegna il messaggio ai destinatari (tutti dello shard): nelle inbox residenti e nei
+     * delta, che lo porteranno nello snapshot. Sotto {@link #writeLock}.
+     */
+    void deliver(Email email, List<String> recipients) {
+        for (String r : recipients) {
+            dirty.computeIfAbsent(r, k -> new Delta()).add(email);
+            Inbox b = resident.get(r);
+            if (b != null) {
+                // compreso l'indice di ricerca, se caricato
+                long before = b.heap();
+                if (b.add(email)) {
+                    long heap = b.heap() - before;
+                    residentHeap += heap;
+                    metrics.resident(heap);
+                }
+            }
+        }
+        maxId = Math.max(maxId, email.getId());
+        evict(null);
+    }
+
+    /** Toglie il messaggio dalla inbox, caricandola se serve. Sotto {@link #writeLock}. */
+    boolean undeliver(String user, int id) {
+        Inbox b = inbox(user);
+        long before = b.heap();
+        Email removed = b.remove(id);
+        if (removed == null) return false;
+        dirty.computeIfAbsent(user, k -> new Delta()).remove(removed);
+        if (removed instanceof StoredEmail s) bodies.released(s.ref(), removed.getTo().size());
+        long heap = before - b.heap();
+        residentHeap -= heap;
+        metrics.resident(-heap);
+        return true;
+    }
+
+    /**
+     * Passa a {@code live} i corpi dei messaggi nelle inbox dello shard, una volta per
+     * destinatario: quelli dello snapshot non cancellati e quelli arrivati dopo.
+     * <p>Sotto {@link #writeLock} si copiano solo i delta; le sezioni dello snapshot si
+     * leggono senza lock, così consegne e cancellazioni non aspettano la scansione. Quello
+     * che cambia nel frattempo non conta: i nuovi corpi non sono tra i candidati e un
+     * messaggio cancellato dopo la copia resta vivo fino alla compattazione successiva.</p>
+     */
+    void liveBodies(Consumer<BodyStore.Ref> live) throws IOException {
+        while (true) {
+            MailSnapshot scan;
+            Map<String, Set<Integer>> deleted = new HashMap<>();
+            List<BodyStore.Ref> added = new ArrayList<>();
+            writeLock.lock();
+            try {
+                scan = snapshot;
+                for (Map.Entry<String, Delta> e : dirty.entrySet()) {
+                    Delta d = e.getValue();
+                    if (!d.deleted.isEmpty()) deleted.put(e.getKey(), Set.copyOf(d.deleted));
+                    for (Email m : d.added.values()) {
+                        if (m instanceof StoredEmail s) added.add(s.ref());
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            added.forEach(live);
+            if (scan == null) return;
+            try {
+                for (String user : scan.sections().keySet()) {
+                    scan.refs(user, deleted.getOrDefault(user, Set.of()), live);
+                }
+                return;
+            } catch (ClosedChannelException replaced) {
+                // snapshot riscritto durante la scansione: si ripete sul nuovo, i corpi già
+                // segnalati restano vivi al più fino alla prossima compattazione
+            }
+        }
+    }
+
+    /** Accoda un record al journal e, superata la soglia, compatta. Sotto {@link #writeLock}. */
+    CompletableFuture<Void> persist(String record) {
+        CompletableFuture<Void> durable = journal.append(record);
+        if (journal.size() >= COMPACT_THRESHOLD) {
+            try {
+                compact();
+            } catch (IOException e) {
+                log.accept("Errore salvataggio dati: " + e.getMessage());
+            }
+        }
+        return durable;
+    }
+
+    /**
+     * Riscrive lo snapshot dello shard e ne svuota il journal: si ricodificano solo le inbox
+     * modificate, le altre sezioni sono copiate. Gli indici di ricerca sono riscritti prima,
+     * così non restano mai indietro rispetto allo snapshot. Sotto {@link #writeLock}.
+     */
+    void compact() throws IOException {
+        long start = System.nanoTime();
+        journal.sync();
+        bodies.flush();
+        compactIndexes();
+        Map<String, List<Email>> rewritten = new HashMap<>(dirty.size() * 2);
+        for (String u : dirty.keySet()) {
+            Inbox b = resident.get(u);
+            rewritten.put(u, (b != null ? b : materialize(u)).after(0));
+        }
+        Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        MailSnapshot.write(tmp, snapshot, rewritten, maxId);
+        // chiuso prima della sostituzione (su Windows un file aperto non si rimpiazza)
+        if (snapshot != null) snapshot.close();
+        try {
+            Files.move(tmp, snapshotPath, REPLACE_EXISTING);
+            // il journal si svuota solo quando la rinomina è su disco
+            MailSnapshot.syncDirectory(snapshotPath.getParent());
+        } finally {
+            // se la sostituzione fallisce si riapre il vecchio: i delta restano
+            snapshot = Files.exists(snapshotPath) ? MailSnapshot.open(snapshotPath, bodies) : null;
+        }
+        dirty.clear();
+        journal.reset();
+        metrics.save().recordSince(start);
+        log.accept("Journal compattato in " + snapshotPath);
+    }
+
+    /**
+     * Riscrive gli indici di ricerca degli utenti modificati o ricostruiti. Se non riesce il
+     * file viene cancellato: un indice più vecchio dello snapshot darebbe risultati sbagliati,
+     * mentre senza file gli indici si ricostruiscono alla prima ricerca.
+     */
+    private void compactIndexes() {
+        Set<String> users = new TreeSet<>(dirty.keySet());
+        users.addAll(rebuilt);
+        if (users.isEmpty()) return;
+        Map<String, SearchIndex> rewritten = new HashMap<>(users.size() * 2);
+        Set<String> dropped = new HashSet<>();
+        for (String u : users) {
+            Inbox b = resident.get(u);
+            SearchIndex idx = (b != null) ? b.index() : null;
+            if (idx == null && dirty.containsKey(u)) idx = stored(u);
+            if (idx != null) rewritten.put(u, idx); else dropped.add(u);
+        }
+        if (rewritten.isEmpty() && (indexes == null || dropped.stream().noneMatch(indexes.users()::contains))) {
+            rebuilt.clear();
+            return;
+        }
+        Path tmp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try {
+            SearchSnapshot.write(tmp, indexes, rewritten, dropped);
+            if (indexes != null) indexes.close();
+            indexes = null;
+            Files.move(tmp, indexPath, REPLACE_EXISTING);
+            MailSnapshot.syncDirectory(indexPath.getParent());
+            indexes = SearchSnapshot.open(indexPath);
+        } catch (IOException e) {
+            log.accept("⚠️ Indici di ricerca non salvati, saranno ricostruiti: " + e.getMessage());
+            try {
+                if (indexes != null) indexes.close();
+                indexes = null;
+                Files.deleteIfExists(indexPath);
+            } catch (IOException ignored) {
+                // resta l'errore già registrato
+            }
+        }
+        rebuilt.clear();
+    }
+}
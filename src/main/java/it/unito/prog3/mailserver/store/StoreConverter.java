@@ -0,0 +1,21 @@
+package it.unito.prog3.mailserver.store;
+
+/**
+ * Conversione una tantum dell'archivio della cartella corrente nel formato binario a shard,
+ * senza avviare il server.
+ * <p>È la stessa conversione che {@link MailStore} esegue al primo avvio (mails.txt/mails.log,
+ * snapshot testuali, cartelle con un altro numero di shard): lanciandola prima si evita di
+ * pagarla all'apertura del server. Rispetta {@code -Dmailserver.shards}.</p>
+ * <pre>java -cp ... it.unito.prog3.mailserver.store.StoreConverter</pre>
+ */
+public final class StoreConverter {
+
+    private StoreConverter() {}
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        MailStore.getInstance(System.out::println);
+        System.out.println("Conversione terminata in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,60 @@
+package it.unito.prog3.mailserver.store;
+
+import shared.Email;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Email lato server con corpo su disco ({@link BodyStore}).
+ * <p>In memoria restano solo intestazioni e riferimento: il corpo viene letto
+ * a ogni {@link #getBody()} e non è trattenuto sull'heap.</p>
+ */
+final class StoredEmail extends Email {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient BodyStore bodies;
+    private final BodyStore.Ref ref;
+
+    StoredEmail(Email e, BodyStore bodies, BodyStore.Ref ref) {
+        this(e.getId(), e.getFrom(), e.getTo(), e.getSubject(), e.getDate(), bodies, ref);
+    }
+
+    StoredEmail(int id, String from, List<String> to, String subject, LocalDateTime date,
+                BodyStore bodies, BodyStore.Ref ref) {
+        super(id, from, to, subject, null, date);
+        this.bodies = bodies;
+        this.ref = ref;
+    }
+
+    /** @return posizione del corpo su disco */
+    BodyStore.Ref ref() {
+        return ref;
+    }
+
+    /** @return corpo in Base64 così come memorizzato, senza decodifica */
+    String body64() {
+        try {
+            return new String(bodies.read(ref), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String getBody() {
+        return new String(Base64.getDecoder().decode(body64()), StandardCharsets.UTF_8);
+    }
+
+    /** Serializzata come {@link Email} con il corpo incluso: l'archivio non viaggia con lei. */
+    @Serial
+    private Object writeReplace() {
+        return new Email(getId(), getFrom(), getTo(), getSubject(), getBody(), getDate());
+    }
+}
@@ -56,7 +56,7 @@ public class Email implements Serializable {
     @Override
     public String toString() {
         String toStr = String.join(",", to);
-        return id + ";" + from + ";" + toStr + ";" + subject + ";" + body + ";" + date.format(DATE_FMT);
+        return id + ";" + from + ";" + toStr + ";" + subject + ";" + getBody() + ";" + date.format(DATE_FMT);
     }
 
     /** @return timestamp di invio (alias di getDate) */
@@ -0,0 +1,145 @@
+package shared;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frame del protocollo binario, attivato dopo l'handshake {@code HELLO;BIN1}.
+ * <p>Formato (interi big endian):</p>
+ * <pre>
+ *   int32 lunghezza (byte che seguono)
+ *   int8  opcode ({@code Protocol.OP_*})
+ *   int16 numero di campi
+ *   per ogni campo: int32 lunghezza + byte
+ * </pre>
+ * <p>I campi sono UTF-8 senza escape né Base64: oggetto e corpo viaggiano così come
+ * sono, i numeri come testo decimale. Un frame porta gli stessi campi della riga
+ * testuale corrispondente, senza il nome del comando.</p>
+ */
+public final class Frame {
+
+    /** Dimensione massima accettata per un frame. */
+    public static final int MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final byte[][] NO_FIELDS = new byte[0][];
+
+    private final byte op;
+    private final byte[][] fields;
+
+    private Frame(byte op, byte[][] fields) {
+        this.op = op;
+        this.fields = fields;
+    }
+
+    /** @return frame con campi testuali */
+    public static Frame of(byte op, String... fields) {
+        byte[][] f = new byte[fields.length][];
+        for (int i = 0; i < f.length; i++) f[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        return new Frame(op, f);
+    }
+
+    /** @return frame con campi già in byte (non copiati) */
+    public static Frame ofBytes(byte op, byte[]... fields) {
+        return new Frame(op, fields.length == 0 ? NO_FIELDS : fields);
+    }
+
+    /** @return opcode */
+    public byte op() { return op; }
+
+    /** @return numero di campi */
+    public int size() { return fields.length; }
+
+    /** @return campo {@code i} come testo */
+    public String string(int i) {
+        return new String(fields[i], StandardCharsets.UTF_8);
+    }
+
+    /** @return campo {@code i} in byte (non copiato) */
+    public byte[] bytes(int i) {
+        return fields[i];
+    }
+
+    /** @return tutti i campi come testo */
+    public String[] strings() {
+        String[] s = new String[fields.length];
+        for (int i = 0; i < s.length; i++) s[i] = string(i);
+        return s;
+    }
+
+    /** @return frame serializzato, prefisso di lunghezza compreso */
+    public byte[] encode() {
+        int len = 1 + 2;
+        for (byte[] f : fields) len += 4 + f.length;
+        ByteBuffer b = ByteBuffer.allocate(4 + len);
+        b.putInt(len).put(op).putShort((short) fields.length);
+        for (byte[] f : fields) b.putInt(f.length).put(f);
+        return b.array();
+    }
+
+    /** Scrive il frame su {@code out} (senza flush). */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(encode());
+    }
+
+    /**
+     * Legge un frame da un flusso bloccante.
+     *
+     * @return frame letto, oppure {@code null} se il flusso termina prima di un nuovo frame
+     * @throws IOException se il frame è troncato o malformato
+     */
+    public static Frame read(InputStream in) throws IOException {
+        DataInputStream din = (in instanceof DataInputStream d) ? d : new DataInputStream(in);
+        int b0 = din.read();
+        if (b0 < 0) return null;
+        int len = (b0 << 24) | (din.readUnsignedByte() << 16) | (din.readUnsignedShort());
+        checkLength(len);
+        byte[] body = new byte[len];
+        din.readFully(body);
+        return decodeBody(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Estrae un frame completo da {@code buf} (modalità lettura), avanzandone la posizione.
+     *
+     * @return frame, oppure {@code null} se i byte disponibili non bastano (posizione invariata)
+     * @throws IOException se il frame è malformato
+     */
+    public static Frame decode(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 4) return null;
+        int len = buf.getInt(buf.position());
+        checkLength(len);
+        if (buf.remaining() < 4 + len) return null;
+        buf.position(buf.position() + 4);
+        ByteBuffer body = buf.slice(buf.position(), len);
+        buf.position(buf.position() + len);
+        return decodeBody(body);
+    }
+
+    private static Frame decodeBody(ByteBuffer b) throws IOException {
+        try {
+            byte op = b.get();
+            int n = Short.toUnsignedInt(b.getShort());
+            byte[][] f = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                int fl = b.getInt();
+                if (fl < 0 || fl > b.remaining()) throw new IOException("Campo non valido nel frame");
+                f[i] = new byte[fl];
+                b.get(f[i]);
+            }
+            if (b.hasRemaining()) throw new IOException("Byte in eccesso nel frame");
+            return new Frame(op, f);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Frame troncato");
+        }
+    }
+
+    private static void checkLength(int len) throws IOException {
+        if (len < 3 || len > MAX_BYTES) throw new IOException("Lunghezza frame non valida: " + len);
+    }
+}
@@ -9,12 +9,81 @@ public final class Protocol {
     //Comandi client → server
     public static final String CMD_LOGIN  = "LOGIN";   // LOGIN;email
     public static final String CMD_SEND   = "SEND";    // SEND;from;to;subject;body
-    public static final String CMD_GET    = "GET";     // GET;user;lastId
-    public static final String CMD_DELETE = "DELETE";  // DELETE;user;id
+    public static final String CMD_GET    = "GET";     // GET;user;lastId[;limit]
+    public static final String CMD_DELETE = "DELETE";  // DELETE;user;id oppure DELETE;user;1,4,10-20 → OK;cancellati
+    public static final String CMD_SEND_BATCH = "SENDBATCH"; // SENDBATCH;n;from;to;subject;body;... (n gruppi) → OK;n
+    public static final String CMD_WATCH  = "WATCH";   // WATCH;user;lastId;timeoutMs
+    public static final String CMD_HEADERS = "HEADERS"; // HEADERS;user;lastId[;limit] → righe HDR
+    public static final String CMD_FETCH  = "FETCH";   // FETCH;user;id → una riga MSG
+    public static final String CMD_HELLO  = "HELLO";   // HELLO;BIN1 → OK;BIN1, poi frame binari ({@link Frame})
+    public static final String CMD_STATS  = "STATS";   // STATS → righe STAT;nome;valore, poi END
+    public static final String CMD_SEARCH = "SEARCH";  // SEARCH;user;base64(query)[;lastId[;limit]] → righe HDR dei messaggi trovati
 
     //Risposte server → client
     public static final String RESP_OK    = "OK";      // operazione riuscita
     public static final String RESP_ERROR = "ERROR";   // errore generico
+    public static final String RESP_MORE  = "MORE";    // MORE;cursor: fine pagina, ci sono altri messaggi dopo cursor
+    public static final String RESP_MSG   = "MSG";     // MSG;id;from;toCsv;subject;body;epochSeconds
+    public static final String RESP_HDR   = "HDR";     // HDR;id;from;toCsv;subject;epochSeconds
+    public static final String RESP_END   = "END";     // fine di una lista
+    public static final String RESP_STAT  = "STAT";    // STAT;nome;valore (contatori, latenze in µs, inbox)
+
+    //Protocollo binario: versione negoziata con HELLO e opcode dei frame
+    public static final String BINARY_V1 = "BIN1";
+    public static final byte OP_LOGIN   = 0x01;
+    public static final byte OP_SEND    = 0x02;
+    public static final byte OP_GET     = 0x03;
+    public static final byte OP_DELETE  = 0x04;
+    public static final byte OP_WATCH   = 0x05;
+    public static final byte OP_HEADERS = 0x06;
+    public static final byte OP_FETCH   = 0x07;
+    public static final byte OP_SEND_BATCH = 0x08;
+    public static final byte OP_STATS   = 0x09;
+    public static final byte OP_SEARCH  = 0x0A;
+    public static final byte OP_OK      = 0x40;
+    public static final byte OP_ERROR   = 0x41;
+    public static final byte OP_MSG     = 0x42;
+    public static final byte OP_HDR     = 0x43;
+    public static final byte OP_END     = 0x44;
+    public static final byte OP_MORE    = 0x45;
+    public static final byte OP_STAT    = 0x46;
+    public static final byte TAG_FLAG   = (byte) 0x80; // opcode | TAG_FLAG: il primo campo è il tag
+
+    //Richieste con tag: #tag;COMANDO;... → ogni riga di risposta inizia con #tag;
+    public static final String TAG_PREFIX = "#";
+
+    //Paginazione GET
+    public static final int GET_MAX_PAGE = 500;        // messaggi massimi per risposta
+
+    //Attesa di WATCH in millisecondi
+    public static final long WATCH_DEFAULT_MS = 30_000; // se il client non lo specifica
+    public static final long WATCH_MAX_MS     = 300_000; // limite imposto dal server
+
+    private static final String[] NAMES = new String[128];
+    static {
+        NAMES[OP_LOGIN] = CMD_LOGIN;     NAMES[OP_SEND] = CMD_SEND;
+        NAMES[OP_GET] = CMD_GET;         NAMES[OP_DELETE] = CMD_DELETE;
+        NAMES[OP_WATCH] = CMD_WATCH;     NAMES[OP_HEADERS] = CMD_HEADERS;
+        NAMES[OP_FETCH] = CMD_FETCH;     NAMES[OP_SEND_BATCH] = CMD_SEND_BATCH;
+        NAMES[OP_STATS] = CMD_STATS;      NAMES[OP_STAT] = RESP_STAT;
+        NAMES[OP_SEARCH] = CMD_SEARCH;
+        NAMES[OP_OK] = RESP_OK;          NAMES[OP_ERROR] = RESP_ERROR;
+        NAMES[OP_MSG] = RESP_MSG;        NAMES[OP_HDR] = RESP_HDR;
+        NAMES[OP_END] = RESP_END;        NAMES[OP_MORE] = RESP_MORE;
+    }
+
+    /** @return nome testuale del comando o della risposta, {@code null} se l'opcode è sconosciuto */
+    public static String name(byte op) {
+        return (op >= 0) ? NAMES[op] : null;
+    }
+
+    /** @return opcode binario del comando o della risposta testuale {@code name} */
+    public static byte opcode(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (name.equals(NAMES[i])) return (byte) i;
+        }
+        throw new IllegalArgumentException("Nessun opcode per " + name);
+    }
 
     /** Classe non istanziabile. */
     private Protocol() {}
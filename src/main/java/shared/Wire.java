@@ -2,9 +2,20 @@ package shared;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Classe di utilità per la comunicazione testuale su socket
@@ -14,12 +25,47 @@ import java.util.List;
  * secondo il protocollo definito in {@link Protocol}.
  * Offre inoltre metodi statici per codifica/decodifica Base64.
  * </p>
+ * <p>Con {@link #upgrade()} la connessione passa al protocollo binario: si usano allora
+ * {@link #sendFrame(Frame)} e {@link #receiveFrame()}, mentre i metodi testuali non
+ * vanno più chiamati. Con un server che non lo supporta si resta sul testo.</p>
+ * <p>I metodi {@code submit} inviano richieste con tag senza attendere la risposta
+ * (pipelining): un thread di lettura associa le risposte alle richieste e completa i
+ * {@link CompletableFuture}. Dal primo {@code submit} la lettura appartiene a quel
+ * thread e i metodi sincroni di ricezione non vanno più usati.</p>
  */
 public class Wire implements Closeable {
 
     private final Socket socket;
     private final PrintWriter out;
-    private final BufferedReader in;
+    private final OutputStream rawOut;
+    private final InputStream in;
+    private boolean binary;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final AtomicInteger nextTag = new AtomicInteger();
+    /** Richieste con tag in attesa di risposta. */
+    private final Map<String, Pending<?>> pending = new ConcurrentHashMap<>();
+    private Thread reader;
+    /** Causa della fine del thread di lettura, {@code null} finché è attivo. */
+    private volatile IOException readerDone;
+
+    /**
+     * Risposta in costruzione per una richiesta con tag.
+     *
+     * @param multi true se la risposta è una lista terminata da END/MORE (GET, HEADERS, WATCH, SEARCH)
+     */
+    private record Pending<T>(boolean multi, List<T> items, CompletableFuture<List<T>> done) {
+        Pending(boolean multi) {
+            this(multi, new ArrayList<>(), new CompletableFuture<>());
+        }
+
+        /** Aggiunge un elemento; @return true se la risposta è completa */
+        boolean add(T item, boolean terminal) {
+            items.add(item);
+            if (multi && !terminal) return false;
+            done.complete(items);
+            return true;
+        }
+    }
 
     /**
      * Crea un nuovo canale di comunicazione con il server.
@@ -30,8 +76,9 @@ public class Wire implements Closeable {
      */
     public Wire(String host, int port) throws IOException {
         this.socket = new Socket(host, port);
-        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.rawOut = new BufferedOutputStream(socket.getOutputStream());
+        this.out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
+        this.in = new BufferedInputStream(socket.getInputStream());
     }
 
     /**
@@ -50,7 +97,7 @@ public class Wire implements Closeable {
      * @throws IOException se la lettura fallisce
      */
     public String receive() throws IOException {
-        return in.readLine();
+        return readLine();
     }
 
     /**
@@ -63,13 +110,297 @@ public class Wire implements Closeable {
     public List<String> receiveUntilEnd() throws IOException {
         List<String> lines = new ArrayList<>();
         String line;
-        while ((line = in.readLine()) != null) {
+        while ((line = readLine()) != null) {
             if ("END".equals(line)) break;
             lines.add(line);
         }
         return lines;
     }
 
+    /**
+     * Pagina di una risposta GET paginata.
+     *
+     * @param lines  righe MSG ricevute
+     * @param cursor lastId da usare per la pagina successiva
+     * @param more   true se il server ha altri messaggi dopo {@code cursor}
+     */
+    public record Page(List<String> lines, int cursor, boolean more) {}
+
+    /**
+     * Legge una pagina terminata da "END" oppure da "MORE;cursor".
+     *
+     * @param lastId lastId della richiesta, usato come cursore se la pagina è vuota
+     * @return pagina ricevuta
+     * @throws IOException se la lettura fallisce o la connessione si chiude
+     */
+    public Page receivePage(int lastId) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = readLine()) != null) {
+            if ("END".equals(line)) return new Page(lines, lastIdOf(lines, lastId), false);
+            if (line.startsWith(Protocol.RESP_MORE + ";")) {
+                return new Page(lines, Integer.parseInt(line.substring(Protocol.RESP_MORE.length() + 1)), true);
+            }
+            lines.add(line);
+        }
+        throw new EOFException("Connessione chiusa durante la ricezione");
+    }
+
+    /**
+     * Scorre tutti i messaggi con id > lastId chiedendo al server pagine di
+     * {@code pageSize} elementi solo quando servono: in memoria c'è al più una pagina.
+     * <p>Gli errori di I/O durante l'iterazione sono rilanciati come {@link UncheckedIOException}.</p>
+     *
+     * @param user     utente
+     * @param lastId   ultimo id già noto al client
+     * @param pageSize messaggi per pagina (il server ne applica comunque un massimo)
+     * @return iteratore sulle righe MSG
+     */
+    public Iterator<String> getAfter(String user, int lastId, int pageSize) {
+        return new Iterator<>() {
+            private Iterator<String> page = Collections.emptyIterator();
+            private int cursor = lastId;
+            private boolean more = true;
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && more) {
+                    send(String.join(";", Protocol.CMD_GET, user, String.valueOf(cursor), String.valueOf(pageSize)));
+                    try {
+                        Page p = receivePage(cursor);
+                        page = p.lines().iterator();
+                        cursor = p.cursor();
+                        more = p.more();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.next();
+            }
+        };
+    }
+
+    /**
+     * Chiede al server il passaggio al protocollo binario ({@code HELLO;BIN1}).
+     *
+     * @return true se il server ha accettato; altrimenti la connessione resta testuale
+     * @throws IOException se la comunicazione fallisce
+     */
+    public boolean upgrade() throws IOException {
+        if (binary) return true;
+        send(Protocol.CMD_HELLO + ";" + Protocol.BINARY_V1);
+        String reply = receive();
+        if (reply == null) throw new EOFException("Connessione chiusa durante l'handshake");
+        binary = reply.equals(Protocol.RESP_OK + ";" + Protocol.BINARY_V1);
+        return binary;
+    }
+
+    /** @return true se la connessione usa il protocollo binario */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Invia un frame (solo dopo {@link #upgrade()}).
+     *
+     * @param f frame da inviare
+     * @throws IOException se la scrittura fallisce
+     */
+    public void sendFrame(Frame f) throws IOException {
+        sendLock.lock();
+        try {
+            f.writeTo(rawOut);
+            rawOut.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Invia un comando binario con i campi in chiaro, ad esempio
+     * {@code request(Protocol.OP_SEND, from, toCsv, subject, body)}.
+     */
+    public void request(byte op, String... fields) throws IOException {
+        sendFrame(Frame.of(op, fields));
+    }
+
+    /**
+     * Legge un frame di risposta.
+     *
+     * @return frame ricevuto oppure {@code null} se la connessione è chiusa
+     * @throws IOException se la lettura fallisce o il frame è malformato
+     */
+    public Frame receiveFrame() throws IOException {
+        return Frame.read(in);
+    }
+
+    /**
+     * Legge frame fino a END o MORE (compreso, come ultimo elemento).
+     *
+     * @return frame ricevuti
+     * @throws IOException se la lettura fallisce o la connessione si chiude
+     */
+    public List<Frame> receiveFramesUntilEnd() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        Frame f;
+        while ((f = receiveFrame()) != null) {
+            frames.add(f);
+            if (f.op() == Protocol.OP_END || f.op() == Protocol.OP_MORE || f.op() == Protocol.OP_ERROR) return frames;
+        }
+        throw new EOFException("Connessione chiusa durante la ricezione");
+    }
+
+    /**
+     * Converte un frame MSG (id, from, toCsv, subject, body, epochSeconds) in {@link Email}.
+     */
+    public static Email toEmail(Frame f) {
+        if (f.op() != Protocol.OP_MSG) throw new IllegalArgumentException("Frame non MSG: " + f.op());
+        return new Email(
+                Integer.parseInt(f.string(0)),
+                f.string(1),
+                f.string(2),
+                f.string(3),
+                f.string(4),
+                LocalDateTime.ofEpochSecond(Long.parseLong(f.string(5)), 0, ZoneOffset.UTC)
+        );
+    }
+
+    /**
+     * Invia un comando testuale con tag senza attendere le risposte precedenti.
+     *
+     * @param command comando senza tag, ad esempio {@code DELETE;user;42}
+     * @return future con le righe di risposta (senza tag); per GET, HEADERS, WATCH, SEARCH e STATS
+     *         l'ultima è END o MORE;cursor
+     */
+    public CompletableFuture<List<String>> submit(String command) {
+        String tag = String.valueOf(nextTag.incrementAndGet());
+        String cmd = command.split(";", 2)[0].toUpperCase();
+        Pending<String> p = new Pending<>(isList(cmd));
+        if (!register(tag, p)) return p.done();
+        send(Protocol.TAG_PREFIX + tag + ";" + command);
+        return p.done();
+    }
+
+    /**
+     * Invia un comando binario con tag senza attendere le risposte precedenti
+     * (solo dopo {@link #upgrade()}).
+     *
+     * @return future con i frame di risposta (senza tag); per GET, HEADERS, WATCH, SEARCH e STATS
+     *         l'ultimo è END o MORE
+     */
+    public CompletableFuture<List<Frame>> submit(byte op, String... fields) {
+        String tag = String.valueOf(nextTag.incrementAndGet());
+        Pending<Frame> p = new Pending<>(isList(Protocol.name(op)));
+        if (!register(tag, p)) return p.done();
+        String[] tagged = new String[fields.length + 1];
+        tagged[0] = tag;
+        System.arraycopy(fields, 0, tagged, 1, fields.length);
+        try {
+            sendFrame(Frame.of((byte) (op | Protocol.TAG_FLAG), tagged));
+        } catch (IOException e) {
+            pending.remove(tag);
+            p.done().completeExceptionally(e);
+        }
+        return p.done();
+    }
+
+    private static boolean isList(String cmd) {
+        return Protocol.CMD_GET.equals(cmd) || Protocol.CMD_HEADERS.equals(cmd) || Protocol.CMD_WATCH.equals(cmd)
+                || Protocol.CMD_STATS.equals(cmd) || Protocol.CMD_SEARCH.equals(cmd);
+    }
+
+    /** Registra la richiesta e avvia il lettore; false (future già fallito) se la connessione è chiusa. */
+    private boolean register(String tag, Pending<?> p) {
+        pending.put(tag, p);
+        ensureReader();
+        IOException done = readerDone;
+        if (done != null && pending.remove(tag) != null) {
+            p.done().completeExceptionally(done);
+            return false;
+        }
+        return true;
+    }
+
+    private void ensureReader() {
+        sendLock.lock();
+        try {
+            if (reader != null) return;
+            reader = new Thread(this::readLoop, "wire-reader");
+            reader.setDaemon(true);
+            reader.start();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /** Smista le risposte con tag alle richieste in attesa, fino alla chiusura. */
+    @SuppressWarnings("unchecked")
+    private void readLoop() {
+        IOException failure = null;
+        try {
+            while (true) {
+                if (binary) {
+                    Frame f = receiveFrame();
+                    if (f == null) break;
+                    if ((f.op() & Protocol.TAG_FLAG) == 0 || f.size() == 0) continue;
+                    byte op = (byte) (f.op() & ~Protocol.TAG_FLAG);
+                    byte[][] fields = new byte[f.size() - 1][];
+                    for (int i = 1; i < f.size(); i++) fields[i - 1] = f.bytes(i);
+                    Pending<Frame> p = (Pending<Frame>) pending.get(f.string(0));
+                    boolean terminal = op == Protocol.OP_END || op == Protocol.OP_MORE || op == Protocol.OP_ERROR;
+                    if (p != null && p.add(Frame.ofBytes(op, fields), terminal)) pending.remove(f.string(0));
+                } else {
+                    String line = readLine();
+                    if (line == null) break;
+                    int sep = line.indexOf(';');
+                    if (!line.startsWith(Protocol.TAG_PREFIX) || sep < 0) continue;
+                    String tag = line.substring(Protocol.TAG_PREFIX.length(), sep);
+                    String rest = line.substring(sep + 1);
+                    Pending<String> p = (Pending<String>) pending.get(tag);
+                    boolean terminal = rest.equals(Protocol.RESP_END)
+                            || rest.startsWith(Protocol.RESP_MORE + ";")
+                            || rest.startsWith(Protocol.RESP_ERROR);
+                    if (p != null && p.add(rest, terminal)) pending.remove(tag);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        IOException cause = (failure != null) ? failure : new EOFException("Connessione chiusa");
+        readerDone = cause;
+        for (Pending<?> p : pending.values()) p.done().completeExceptionally(cause);
+        pending.clear();
+    }
+
+    /** Riga UTF-8 terminata da {@code \n} ({@code \r} finale rimosso), {@code null} a fine flusso. */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') buf.write(b);
+        if (b < 0 && buf.size() == 0) return null;
+        byte[] line = buf.toByteArray();
+        int len = line.length;
+        if (len > 0 && line[len - 1] == '\r') len--;
+        return new String(line, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /** Id dell'ultima riga MSG;id;... della lista, o {@code fallback} se vuota. */
+    private static int lastIdOf(List<String> lines, int fallback) {
+        if (lines.isEmpty()) return fallback;
+        String[] p = lines.get(lines.size() - 1).split(";", 3);
+        try {
+            return Integer.parseInt(p[1]);
+        } catch (RuntimeException e) {
+            return fallback;
+        }
+    }
+
     /**
      * Codifica una stringa in Base64 (utile per subject/body email).
      *